@@ -3,9 +3,13 @@ package com.hmdp;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.annotation.EnableAspectJAutoProxy;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @MapperScan("com.hmdp.mapper")
 @SpringBootApplication
+@EnableScheduling
+@EnableAspectJAutoProxy(exposeProxy = true)
 public class HmDianPingApplication {
 
     public static void main(String[] args) {
@@ -1,7 +1,9 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminTokenInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillRateLimitInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -17,6 +19,14 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    // 秒杀限流(要用到配置 所以交给spring创建)
+    @Resource
+    private SeckillRateLimitInterceptor seckillRateLimitInterceptor;
+
+    // 管理接口的校验(要用到配置 所以交给spring创建)
+    @Resource
+    private AdminTokenInterceptor adminTokenInterceptor;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         // LoginInterceptor拦截ThreadLocal中不存在的请求
@@ -37,5 +47,14 @@ public class MvcConfig implements WebMvcConfigurer {
                 // order()控制拦截器执行顺序，要先执行RefreshTokenInterceptor
                 // 再执行LoginInterceptor，order越大执行优先级越高
                 .addPathPatterns("/**").order(0);
+        // 秒杀下单的限流 在登录校验之后执行(要拿到用户id)
+        registry.addInterceptor(seckillRateLimitInterceptor).addPathPatterns(
+                "/voucher-order/seckill/{id}",
+                "/voucher-order/seckill/async/{id}"
+        ).order(2);
+        // 管理接口(/voucher/**不用登录 但是这些接口要校验管理员token)
+        registry.addInterceptor(adminTokenInterceptor).addPathPatterns(
+                "/voucher/seckill/rebuild"
+        ).order(3);
     }
 }
@@ -0,0 +1,62 @@
+package com.hmdp.config;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.StringCodec;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisNode;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+
+@Configuration
+public class RedisAsyncConfig {
+
+    /**
+     * 只支持一个主节点的redis(单机 或者主从+sentinel 都是连主节点)
+     * 秒杀的lua脚本在脚本里面拼key(券的库存 下单用户 订单id序列号 订单stream的分片...) 一次要访问不同hash slot的key
+     * redis cluster会拒绝执行 所以配置了cluster的时候启动直接报错 不要等到秒杀的时候才发现
+     * 订单stream分片只是把消费订单的工作分给多个节点 所有分片还是在同一个redis主节点上
+     */
+    private static void checkNotCluster(LettuceConnectionFactory connectionFactory) {
+        if (connectionFactory.isClusterAware()) {
+            throw new IllegalStateException("秒杀的lua脚本不支持redis cluster 请配置spring.redis.host或者spring.redis.sentinel");
+        }
+    }
+
+    /**
+     * lettuce的原生连接 用它的异步api(返回的是future) 发命令的线程不用等redis返回
+     * 一个连接是线程安全的 所有请求共用这一个连接就行
+     */
+    @Bean(destroyMethod = "close")
+    public StatefulRedisConnection<String, String> redisAsyncConnection(LettuceConnectionFactory connectionFactory) {
+        checkNotCluster(connectionFactory);
+        // 复用spring的RedisClient(共用io线程) 地址和密码也用spring.redis里面配置的
+        RedisClient client = (RedisClient) connectionFactory.getRequiredNativeClient();
+        RedisURI.Builder builder;
+        if (connectionFactory.isRedisSentinelAware()) {
+            // sentinel 通过sentinel找到主节点(主从切换以后lettuce会重新找)
+            RedisSentinelConfiguration config = connectionFactory.getSentinelConfiguration();
+            builder = RedisURI.builder().withSentinelMasterId(config.getMaster().getName());
+            for (RedisNode sentinel : config.getSentinels()) {
+                if (config.getSentinelPassword().isPresent()) {
+                    builder.withSentinel(sentinel.getHost(), sentinel.getPort(), new String(config.getSentinelPassword().get()));
+                } else {
+                    builder.withSentinel(sentinel.getHost(), sentinel.getPort());
+                }
+            }
+            builder.withDatabase(config.getDatabase());
+            config.getPassword().toOptional().ifPresent(builder::withPassword);
+        } else {
+            RedisStandaloneConfiguration config = connectionFactory.getStandaloneConfiguration();
+            builder = RedisURI.builder()
+                    .withHost(config.getHostName())
+                    .withPort(config.getPort())
+                    .withDatabase(config.getDatabase());
+            config.getPassword().toOptional().ifPresent(builder::withPassword);
+        }
+        return client.connect(StringCodec.UTF8, builder.build());
+    }
+}
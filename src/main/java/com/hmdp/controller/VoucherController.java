@@ -3,6 +3,7 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,6 +17,9 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
     /**
      * 新增普通券
      *
@@ -40,6 +44,21 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * redis数据丢失以后 从mysql重建秒杀券的库存和下单用户
+     * 管理接口 请求头要带 X-Admin-Token(见AdminTokenInterceptor)
+     *
+     * @return 重建的秒杀券数量
+     */
+    @PostMapping("seckill/rebuild")
+    public Result rebuildSeckillState() {
+        int count = seckillVoucherService.rebuildSeckillState();
+        if (count < 0) {
+            return Result.fail("正在重建中！");
+        }
+        return Result.ok(count);
+    }
+
     /**
      * 查询店铺的优惠券列表
      *
@@ -3,12 +3,16 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
+import java.util.concurrent.CompletableFuture;
 
 @RestController
 @RequestMapping("/voucher-order")
@@ -20,12 +24,81 @@ public class VoucherOrderController {
      * 下单优惠券
      *
      * @param voucherId
+     * @param quantity  买几个(不传就是1个 不能超过每人限购的数量)
      * @return
      */
     @PostMapping("seckill/{id}")
-    public Result seckillVoucher(@PathVariable("id") Long voucherId) {
+    public Result seckillVoucher(@PathVariable("id") Long voucherId,
+                                 @RequestParam(value = "quantity", defaultValue = "1") Integer quantity) {
         // 把我们的id传递过去  这个id是post请求里面的 是自带的
 
-        return iVoucherOrderService.seckillVoucher(voucherId);
+        return iVoucherOrderService.seckillVoucher(voucherId, quantity);
+    }
+
+    /**
+     * 排队领号(开启了排队的秒杀券 要先领号 轮到了才能下单)
+     *
+     * @param voucherId 优惠券id
+     * @return 号码 放行到第几号 是否轮到了 建议多久以后再查
+     */
+    @PostMapping("seckill/{id}/ticket")
+    public Result takeSeckillTicket(@PathVariable("id") Long voucherId) {
+        return iVoucherOrderService.takeSeckillTicket(voucherId);
+    }
+
+    /**
+     * 查询排队的进度
+     *
+     * @param voucherId 优惠券id
+     * @return 号码 放行到第几号 是否轮到了 建议多久以后再查
+     */
+    @GetMapping("seckill/{id}/ticket")
+    public Result querySeckillTicket(@PathVariable("id") Long voucherId) {
+        return iVoucherOrderService.querySeckillTicket(voucherId);
+    }
+
+    /**
+     * 下单优惠券(非阻塞) 等redis返回的时候不占用tomcat线程
+     *
+     * @param voucherId
+     * @param quantity  买几个
+     * @return
+     */
+    @PostMapping("seckill/async/{id}")
+    public CompletableFuture<Result> seckillVoucherAsync(@PathVariable("id") Long voucherId,
+                                                         @RequestParam(value = "quantity", defaultValue = "1") Integer quantity) {
+        return iVoucherOrderService.seckillVoucherAsync(voucherId, quantity);
+    }
+
+    /**
+     * 查询下单结果(长轮询) 结果出来了或者超时了才返回
+     *
+     * @param orderId 秒杀返回的订单id
+     * @return 0:处理中 1:下单成功 2:下单失败
+     */
+    @GetMapping("result/{orderId}")
+    public DeferredResult<Result> queryOrderResult(@PathVariable("orderId") Long orderId) {
+        return iVoucherOrderService.queryOrderResult(orderId);
+    }
+
+    /**
+     * 查询订单(刚下单还没落库的也能查到)
+     *
+     * @param orderId 订单id
+     * @return 订单
+     */
+    @GetMapping("{orderId}")
+    public Result queryOrder(@PathVariable("orderId") Long orderId) {
+        return iVoucherOrderService.queryOrder(orderId);
+    }
+
+    /**
+     * 秒杀的计数(当前节点) 加上订单stream每个分片的积压情况
+     *
+     * @return 计数名 -> 累计值 backpressured -> 是否在背压 streams -> 每个分片的消费情况
+     */
+    @GetMapping("metrics")
+    public Result queryMetrics() {
+        return iVoucherOrderService.queryMetrics();
     }
 }
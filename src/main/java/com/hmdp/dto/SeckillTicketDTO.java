@@ -0,0 +1,15 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class SeckillTicketDTO {
+    // 排队的号码(0表示这个券不需要排队)
+    private Long position;
+    // 已经放行到第几号
+    private Long frontier;
+    // 是否已经轮到了(轮到了才能调用秒杀接口)
+    private Boolean admitted;
+    // 建议多久(毫秒)以后再来查
+    private Long waitMillis;
+}
@@ -34,6 +34,21 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 每人限购数量
+     */
+    private Integer userLimit;
+
+    /**
+     * 库存租约每次租多少个(0就是不用租约)
+     */
+    private Integer leaseChunk;
+
+    /**
+     * 排队每秒放行多少个号(0就是不用排队)
+     */
+    private Integer roomRate;
+
     /**
      * 创建时间
      */
@@ -70,6 +70,24 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存租约 每个节点一次从redis租多少个库存到本地(不填就是不用租约) 大库存的券才需要
+     */
+    @TableField(exist = false)
+    private Integer leaseChunk;
+
+    /**
+     * 排队(等候室) 每秒放行多少个号(不填就是不用排队) 开启后要先领号 轮到了才能秒杀
+     */
+    @TableField(exist = false)
+    private Integer waitingRoomRate;
+
+    /**
+     * 每人限购几个(不填就是1个 一人一单)
+     */
+    @TableField(exist = false)
+    private Integer userLimit;
+
     /**
      * 生效时间
      */
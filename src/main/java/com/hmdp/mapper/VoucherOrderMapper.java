@@ -2,7 +2,23 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.VoucherOrder;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    Map<String, Object> countSince(@Param("voucherId") Long voucherId,
+                                   @Param("sinceId") Long sinceId,
+                                   @Param("settleBefore") Long settleBefore);
+
+    List<VoucherOrder> listAfter(@Param("lastId") Long lastId,
+                                 @Param("voucherIds") Collection<Long> voucherIds,
+                                 @Param("limit") int limit);
 }
@@ -5,4 +5,15 @@ import com.hmdp.entity.SeckillVoucher;
 
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    boolean isPrewarmDue(SeckillVoucher voucher);
+
+    void applySeckillConfig(SeckillVoucher voucher);
+
+    boolean loadSeckillVoucher(SeckillVoucher voucher);
+
+    void unloadSeckillVoucher(Long voucherId);
+
+    void reconcileStock();
+
+    int rebuildSeckillState();
 }
@@ -3,13 +3,33 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public interface IVoucherOrderService extends IService<VoucherOrder> {
     // 加上事务(一般在接口类写)
     // @Transactional  这里就没有事务了 全在我们的另外一个方法里面了
 
-    Result seckillVoucher(Long voucherId);
+    Result seckillVoucher(Long voucherId, int quantity);
+
+
+    CompletableFuture<Result> seckillVoucherAsync(Long voucherId, int quantity);
+
+    DeferredResult<Result> queryOrderResult(Long orderId);
+
+    Result queryOrder(Long orderId);
+
+    Result takeSeckillTicket(Long voucherId);
+
+    Result querySeckillTicket(Long voucherId);
+
+    Result queryMetrics();
+
+    boolean createVoucherOrder(VoucherOrder voucherId);
 
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
 
-    void createVoucherOrder(VoucherOrder voucherId);
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
 }
@@ -2,11 +2,484 @@ package com.hmdp.service.impl;
 
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.SeckillVoucherMapper;
+import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.OrderStreamRouter;
+import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    // 提前多久(毫秒)把秒杀券加载到redis
+    @Value("${hmdp.seckill.prewarm.lead:300000}")
+    private long prewarmLead;
+
+    // 结束多久(毫秒)以内的秒杀券还要检查一下有没有卸载
+    @Value("${hmdp.seckill.prewarm.unload-lookback:600000}")
+    private long unloadLookback;
+
+    @Resource
+    private VoucherOrderMapper voucherOrderMapper;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Resource
+    private OrderStreamRouter orderStreamRouter;
+
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    // 重建: 每批从订单表读多少条(一批一个pipeline写到redis)
+    @Value("${hmdp.seckill.rebuild.batch-size:10000}")
+    private int rebuildBatchSize;
+
+    // 对账: 结束多久(毫秒)以内的秒杀券还要对账
+    @Value("${hmdp.seckill.reconcile.lookback:3600000}")
+    private long reconcileLookback;
+
+    // 对账: 订单从进redis到落库最多延迟多久(毫秒) 比这个早的订单认为已经全部落库 计数固定下来以后不再重复扫描
+    @Value("${hmdp.seckill.reconcile.settle-lag:600000}")
+    private long reconcileSettleLag;
+
+    // 对账: 发现不一致是否自动修复(否则只报告)
+    @Value("${hmdp.seckill.reconcile.repair:false}")
+    private boolean reconcileRepair;
+
+    // 对账时读mysql的快照(库存和订单数要在同一个一致性读里面)
+    private TransactionTemplate snapshotTemplate;
+
+    private static final DefaultRedisScript<Long> LOAD_SCRIPT;
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SNAPSHOT_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_ADJUST_SCRIPT;
+    private static final DefaultRedisScript<Long> REBUILD_SCRIPT;
+
+    static {
+        LOAD_SCRIPT = new DefaultRedisScript<>();
+        LOAD_SCRIPT.setLocation(new ClassPathResource("seckill_load.lua"));
+        LOAD_SCRIPT.setResultType(Long.class);
+
+        SNAPSHOT_SCRIPT = new DefaultRedisScript<>();
+        SNAPSHOT_SCRIPT.setLocation(new ClassPathResource("seckill_snapshot.lua"));
+        SNAPSHOT_SCRIPT.setResultType(List.class);
+
+        STOCK_ADJUST_SCRIPT = new DefaultRedisScript<>();
+        STOCK_ADJUST_SCRIPT.setLocation(new ClassPathResource("seckill_stock_adjust.lua"));
+        STOCK_ADJUST_SCRIPT.setResultType(Long.class);
+
+        REBUILD_SCRIPT = new DefaultRedisScript<>();
+        REBUILD_SCRIPT.setLocation(new ClassPathResource("seckill_rebuild.lua"));
+        REBUILD_SCRIPT.setResultType(Long.class);
+    }
+
+    @PostConstruct
+    private void init() {
+        snapshotTemplate = new TransactionTemplate(transactionManager);
+        snapshotTemplate.setReadOnly(true);
+        snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    @Override
+    public boolean isPrewarmDue(SeckillVoucher voucher) {
+        return !voucher.getBeginTime().isAfter(LocalDateTime.now().plus(Duration.ofMillis(prewarmLead)));
+    }
+
+    /**
+     * 把mysql里面的库存租约 排队的配置写到redis(新增秒杀券 加载 重建的时候都写一遍 redis丢了也能恢复)
+     * 没有配置的不写(老数据这几列是默认值)
+     *
+     * @param voucher 秒杀券
+     */
+    @Override
+    public void applySeckillConfig(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        // 配置改成0(关掉)的要把redis里面的删掉
+        int leaseChunk = voucher.getLeaseChunk() == null ? 0 : voucher.getLeaseChunk();
+        if (leaseChunk > 0) {
+            stringRedisTemplate.opsForValue().set(SECKILL_LEASE_CHUNK_KEY + voucherId, String.valueOf(leaseChunk));
+        } else {
+            stringRedisTemplate.delete(SECKILL_LEASE_CHUNK_KEY + voucherId);
+        }
+        seckillStockLease.refreshChunk(voucherId, leaseChunk);
+        if (voucher.getRoomRate() != null && voucher.getRoomRate() > 0) {
+            stringRedisTemplate.opsForValue().set(SECKILL_ROOM_RATE_KEY + voucherId, voucher.getRoomRate().toString());
+        } else {
+            stringRedisTemplate.delete(SECKILL_ROOM_RATE_KEY + voucherId);
+        }
+    }
+
+    /**
+     * 把库存 时间窗口 每人限购数量 空的用户购买数量加载到redis(已经加载过的不会重复加载)
+     * 加载之前先写配置
+     *
+     * @param voucher 秒杀券
+     * @return 这次是否真的加载了
+     */
+    @Override
+    public boolean loadSeckillVoucher(SeckillVoucher voucher) {
+        applySeckillConfig(voucher);
+        Long loaded = stringRedisTemplate.execute(
+                LOAD_SCRIPT,
+                Collections.emptyList(),
+                voucher.getVoucherId().toString(),
+                voucher.getStock().toString(),
+                String.valueOf(toEpochSecond(voucher.getBeginTime())),
+                String.valueOf(toEpochSecond(voucher.getEndTime())),
+                String.valueOf(limitOf(voucher))
+        );
+        if (loaded == null || loaded != 1L) {
+            return false;
+        }
+        // 上了库存 清掉所有节点的售罄标记
+        seckillSoldOutRegistry.reset(voucher.getVoucherId());
+        log.info("秒杀券已加载到redis voucherId={} stock={}", voucher.getVoucherId(), voucher.getStock());
+        return true;
+    }
+
+    /**
+     * 秒杀结束后把redis里面的状态删掉(租约 排队的配置留着 对账、取消订单还库存的时候还要用 丢了也能从mysql恢复)
+     *
+     * @param voucherId 优惠券id
+     */
+    @Override
+    public void unloadSeckillVoucher(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        keys.add(SECKILL_STOCK_KEY + voucherId);
+        keys.add(SECKILL_BOUGHT_KEY + voucherId);
+        keys.add(SECKILL_WINDOW_KEY + voucherId);
+        keys.add(SECKILL_LEASE_KEY + voucherId);
+        keys.add(SECKILL_ROOM_KEY + voucherId);
+        keys.add(SECKILL_ROOM_TICKETS_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+    }
+
+    /**
+     * 定时预热 快要开始(或者已经开始还没结束)的秒杀券加载到redis 已经结束的卸载掉
+     * 只按时间范围查 查出来的都是正在进行或者马上开始的券 不会扫全表
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.prewarm.interval:30000}")
+    public void prewarmSeckillVouchers() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            // 1.加载 begin_time <= now + lead and end_time > now
+            List<SeckillVoucher> upcoming = query()
+                    .le("begin_time", now.plus(Duration.ofMillis(prewarmLead)))
+                    .gt("end_time", now)
+                    .list();
+            for (SeckillVoucher voucher : upcoming) {
+                loadSeckillVoucher(voucher);
+            }
+            // 2.卸载 now - lookback < end_time <= now
+            List<SeckillVoucher> finished = query()
+                    .select("voucher_id")
+                    .le("end_time", now)
+                    .gt("end_time", now.minus(Duration.ofMillis(unloadLookback)))
+                    .list();
+            for (SeckillVoucher voucher : finished) {
+                unloadSeckillVoucher(voucher.getVoucherId());
+            }
+        } catch (Exception e) {
+            log.error("秒杀券预热异常", e);
+        }
+    }
+
+    /**
+     * 定时对账 redis库存、mysql库存和订单数对不上的报告出来(打开repair的话顺便修复)
+     * <p>
+     * 库存的总数没有单独存 用 库存 + 已售 算出来:
+     * mysql: 库存 + 订单数 = 总数    redis: 库存 + 下单用户数 = 总数
+     * 第一次对账的时候用mysql算出总数记到 seckill:reconcile:id 后面两边都和它比
+     * <p>
+     * 订单id的高位是时间戳 按id范围就是按时间范围 每次只统计上次水位之后的订单
+     * 早于 now - settle-lag 的部分认为已经全部落库 累加到counted 水位往前推
+     * 多个节点都会跑 用分布式锁保证同一时间只有一个节点在对账(不然counted会重复累加)
+     * 超时取消的订单会把库存还给两边 同时把总库存加上(见seckill_cancel.lua)
+     * 还有早于 now - settle-lag 的订单没落库(在stream里面没投递 在pending-list里面 或者在某个节点的落盘队列里面)
+     * 这一轮水位不往前推 也不自动修复 只报告(不然这些订单永远数不到 修复反而把库存改错)
+     */
+    @Override
+    @Scheduled(fixedDelayString = "${hmdp.seckill.reconcile.interval:60000}")
+    public void reconcileStock() {
+        // 写锁: 同一时间只有一个节点在对账 取消订单(还库存)的时候拿读锁 对账看到的库存和总库存是一致的
+        RLock lock = redissonClient.getReadWriteLock(SECKILL_RECONCILE_LOCK).writeLock();
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            long settleBefore = RedisIdWorker.minIdAt(now.minus(Duration.ofMillis(reconcileSettleLag)));
+            // 0.还有没落库的老订单 这一轮不推水位不修复
+            Long spooling = stringRedisTemplate.opsForSet().size(SECKILL_SPOOL_NODES_KEY);
+            boolean unsettled = (spooling != null && spooling > 0)
+                    || orderStreamMonitor.hasUnsettledOrdersBefore(System.currentTimeMillis() - reconcileSettleLag);
+            if (unsettled) {
+                log.info("还有超过settle-lag没落库的订单 本轮对账不推进水位也不修复 spooling={}", spooling);
+            }
+            // 1.正在进行和刚结束的秒杀券
+            List<SeckillVoucher> vouchers = query()
+                    .select("voucher_id", "begin_time")
+                    .le("begin_time", now)
+                    .gt("end_time", now.minus(Duration.ofMillis(reconcileLookback)))
+                    .list();
+            for (SeckillVoucher voucher : vouchers) {
+                try {
+                    reconcileVoucher(voucher, settleBefore, unsettled);
+                } catch (Exception e) {
+                    log.error("秒杀券对账异常 voucherId={}", voucher.getVoucherId(), e);
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀券对账异常", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconcileVoucher(SeckillVoucher seckillVoucher, long settleBefore, boolean unsettled) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        String stateKey = SECKILL_RECONCILE_KEY + voucherId;
+        // 1.上次对账的状态: 总数 水位(订单id) 水位之前的订单数
+        List<Object> state = stringRedisTemplate.opsForHash()
+                .multiGet(stateKey, Arrays.asList("total", "watermark", "counted"));
+        Long total = state.get(0) == null ? null : Long.valueOf(state.get(0).toString());
+        // 第一次对账从开始时间算起 开始之前不会有订单
+        long watermark = state.get(1) == null
+                ? RedisIdWorker.minIdAt(seckillVoucher.getBeginTime())
+                : Long.parseLong(state.get(1).toString());
+        long counted = state.get(2) == null ? 0L : Long.parseLong(state.get(2).toString());
+
+        // 2.mysql快照: 库存 + 水位之后的订单数(在同一个一致性读里面)
+        long[] db = snapshotTemplate.execute(status -> {
+            SeckillVoucher voucher = getById(voucherId);
+            Map<String, Object> count = voucherOrderMapper.countSince(voucherId, watermark, settleBefore);
+            return new long[]{
+                    voucher.getStock(),
+                    ((Number) count.get("total")).longValue(),
+                    ((Number) count.get("settled")).longValue()
+            };
+        });
+        long dbStock = db[0];
+        long persisted = counted + db[1];
+        if (total == null) {
+            total = dbStock + persisted;
+        }
+
+        // 3.redis快照: [是否加载了, 库存, 下单用户数]
+        List<?> redis = stringRedisTemplate.execute(SNAPSHOT_SCRIPT, Collections.emptyList(), voucherId.toString());
+
+        // 4.保存这次的状态 水位往前推到settleBefore(回退的话不动 比如改过settle-lag)
+        // 总库存只在第一次写(后面只有取消订单还库存的时候会加)
+        Map<String, String> newState = new HashMap<>();
+        if (state.get(0) == null) {
+            newState.put("total", total.toString());
+        }
+        if (settleBefore > watermark && !unsettled) {
+            newState.put("watermark", String.valueOf(settleBefore));
+            newState.put("counted", String.valueOf(counted + db[2]));
+        }
+        if (!newState.isEmpty()) {
+            stringRedisTemplate.opsForHash().putAll(stateKey, newState);
+        }
+
+        // 5.mysql: 库存应该是 总数 - 订单数
+        long expectedDbStock = total - persisted;
+        if (dbStock != expectedDbStock) {
+            seckillMetrics.increment(SeckillMetrics.STOCK_DRIFT_DB, 1);
+            log.warn("秒杀券mysql库存不一致 voucherId={} stock={} expected={} orders={} total={}",
+                    voucherId, dbStock, expectedDbStock, persisted, total);
+            if (reconcileRepair && !unsettled) {
+                // 库存没被别人改过才修复
+                boolean repaired = update()
+                        .set("stock", expectedDbStock)
+                        .eq("voucher_id", voucherId)
+                        .eq("stock", dbStock)
+                        .update();
+                log.info("秒杀券mysql库存修复 voucherId={} repaired={}", voucherId, repaired);
+            }
+        }
+
+        // 6.redis: 库存应该是 总数 - 下单用户数(没加载到redis的不用比)
+        if (redis == null || ((Number) redis.get(0)).longValue() != 1L) {
+            return;
+        }
+        long redisStock = ((Number) redis.get(1)).longValue();
+        long admitted = ((Number) redis.get(2)).longValue();
+        long expectedRedisStock = total - admitted;
+        if (redisStock != expectedRedisStock) {
+            seckillMetrics.increment(SeckillMetrics.STOCK_DRIFT_REDIS, 1);
+            log.warn("秒杀券redis库存不一致 voucherId={} stock={} expected={} admitted={} total={}",
+                    voucherId, redisStock, expectedRedisStock, admitted, total);
+            if (reconcileRepair && !unsettled) {
+                // 库存还是刚才看到的值才调整 否则这期间有人下单了 下一轮再说
+                Long repaired = stringRedisTemplate.execute(
+                        STOCK_ADJUST_SCRIPT,
+                        Collections.emptyList(),
+                        voucherId.toString(),
+                        String.valueOf(expectedRedisStock - redisStock),
+                        String.valueOf(redisStock)
+                );
+                log.info("秒杀券redis库存修复 voucherId={} repaired={}", voucherId, repaired);
+            }
+        }
+        // 7.进了redis还没落库的订单 持续很久的话说明丢了(比如进了死信)
+        if (admitted > persisted) {
+            log.info("秒杀券还有订单未落库 voucherId={} admitted={} persisted={}", voucherId, admitted, persisted);
+        }
+    }
+
+    /**
+     * redis数据丢失(flush 或者没有持久化的主从切换)以后 从mysql重建正在进行和马上开始的秒杀券的状态
+     * <p>
+     * 1.按主键游标分批读订单表(只读这些券开始之后的订单 不做全表加载) 每批用一个pipeline把用户sadd到临时集合
+     * 2.整个扫描在一个只读的一致性读事务里面 库存和订单数是同一个快照 不加锁 不影响线上下单和落库
+     * 3.最后每个券执行一次脚本: 临时集合并进下单用户集合(保留重建期间新抢到的) 库存 = 总库存 - 下单用户数 写回时间窗口
+     * 丢失的stream消息没办法找回 这部分用户在mysql里面没有订单 可以重新抢
+     *
+     * @return 重建了几个秒杀券 -1表示已经有节点在重建
+     */
+    @Override
+    public int rebuildSeckillState() {
+        RLock lock = redissonClient.getLock("lock:seckill:rebuild");
+        if (!lock.tryLock()) {
+            return -1;
+        }
+        try {
+            // 1.stream和消费者组也丢了的话 重新创建 不然消费者一直报NOGROUP
+            orderStreamRouter.createGroups();
+            // 2.正在进行和马上要预热的秒杀券
+            LocalDateTime now = LocalDateTime.now();
+            List<Long> voucherIds = query()
+                    .select("voucher_id")
+                    .le("begin_time", now.plus(Duration.ofMillis(prewarmLead)))
+                    .gt("end_time", now)
+                    .list()
+                    .stream()
+                    .map(SeckillVoucher::getVoucherId)
+                    .collect(Collectors.toList());
+            if (voucherIds.isEmpty()) {
+                return 0;
+            }
+            // 3.一致性读 扫描订单表 把每个用户买的数量写到临时hash
+            Map<Long, Long> totals = new HashMap<>();
+            List<SeckillVoucher> vouchers = snapshotTemplate.execute(status -> {
+                List<SeckillVoucher> list = listByIds(voucherIds);
+                long lastId = Long.MAX_VALUE;
+                for (SeckillVoucher voucher : list) {
+                    totals.put(voucher.getVoucherId(), voucher.getStock().longValue());
+                    stringRedisTemplate.delete(rebuildKey(voucher.getVoucherId()));
+                    // 从最早开始的券的开始时间扫起 开始之前不会有订单
+                    lastId = Math.min(lastId, RedisIdWorker.minIdAt(voucher.getBeginTime()) - 1);
+                }
+                while (true) {
+                    List<VoucherOrder> orders = voucherOrderMapper.listAfter(lastId, voucherIds, rebuildBatchSize);
+                    if (orders.isEmpty()) {
+                        break;
+                    }
+                    // 3.1.按券 按用户把数量加起来 一个用户一条hincrby(同一个用户可能分几单买)
+                    Map<Long, Map<String, Long>> bought = new HashMap<>();
+                    for (VoucherOrder order : orders) {
+                        long quantity = order.getQuantity() == null ? 1L : order.getQuantity();
+                        bought.computeIfAbsent(order.getVoucherId(), k -> new HashMap<>())
+                                .merge(order.getUserId().toString(), quantity, Long::sum);
+                        totals.merge(order.getVoucherId(), quantity, Long::sum);
+                    }
+                    stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                        StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                        bought.forEach((voucherId, quantities) -> {
+                            String key = rebuildKey(voucherId);
+                            quantities.forEach((userId, quantity) -> stringConnection.hIncrBy(key, userId, quantity));
+                            // 重建中途挂了 临时hash也会自己过期
+                            stringConnection.expire(key, TimeUnit.HOURS.toSeconds(1));
+                        });
+                        return null;
+                    });
+                    lastId = orders.get(orders.size() - 1).getId();
+                    if (orders.size() < rebuildBatchSize) {
+                        break;
+                    }
+                }
+                return list;
+            });
+            // 4.每个券原子地切换到重建好的状态(先从mysql恢复租约 排队的配置)
+            for (SeckillVoucher voucher : vouchers) {
+                applySeckillConfig(voucher);
+                Long stock = stringRedisTemplate.execute(
+                        REBUILD_SCRIPT,
+                        Collections.emptyList(),
+                        voucher.getVoucherId().toString(),
+                        totals.get(voucher.getVoucherId()).toString(),
+                        String.valueOf(toEpochSecond(voucher.getBeginTime())),
+                        String.valueOf(toEpochSecond(voucher.getEndTime())),
+                        String.valueOf(limitOf(voucher))
+                );
+                seckillSoldOutRegistry.reset(voucher.getVoucherId());
+                log.info("秒杀券redis状态已重建 voucherId={} total={} stock={}",
+                        voucher.getVoucherId(), totals.get(voucher.getVoucherId()), stock);
+            }
+            return vouchers.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String rebuildKey(Long voucherId) {
+        return SECKILL_BOUGHT_KEY + voucherId + ":rebuild";
+    }
+
+    // 每人限购几个 没有配置的老数据就是一人一单
+    private static int limitOf(SeckillVoucher voucher) {
+        return voucher.getUserLimit() == null ? 1 : voucher.getUserLimit();
+    }
+
+    private static long toEpochSecond(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
 }
@@ -1,10 +1,7 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.baomidou.mybatisplus.core.toolkit.StringUtils;
+import cn.hutool.core.bean.BeanUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
@@ -13,7 +10,6 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
@@ -24,11 +20,9 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 @Service
@@ -40,6 +34,24 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    @PostConstruct
+    private void init() {
+        // 商铺id的布隆过滤器(不存在的id直接返回 不访问redis和数据库)
+        cacheClient.registerFilter(RedisConstants.CACHE_SHOP_KEY, () -> listObjs(new QueryWrapper<Shop>().select("id")));
+    }
+
+    /**
+     * 新增商铺 同时把id加到布隆过滤器里面
+     */
+    @Override
+    public boolean save(Shop shop) {
+        boolean saved = super.save(shop);
+        if (saved) {
+            cacheClient.addToFilter(RedisConstants.CACHE_SHOP_KEY, shop.getId());
+        }
+        return saved;
+    }
+
     @Override
     public Result queryById(Long id) {
         // 缓存穿透
@@ -66,182 +78,54 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     /**
      * 封装了缓存穿透的代码
+     * 缓存值的格式由CacheClient决定(可能是二进制的) 不能自己按json读写 交给CacheClient
      *
      * @param id
      * @return
      */
     public Shop queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商户缓存，得到的是JSON数据
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StringUtils.isNotBlank(shopJson)) {
-            // 3.存在，则直接返回 --> 使用JSONUtil工具类，把shopJson数据转换成Shop类的数据
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 判断命中的是否为空值
-        if (shopJson != null) {
-            return null;
-        }
-
-        // 4.不存在，则根据id查询数据库
-        Shop shop = getById(id);
-        // 5.不存在，返回错误
-        if (shop == null) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
-            return null;
-        }
-        // 6.存在，写入redis，写入的也是JSON数据，因此需要JsonStr工具类
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 7.返回
-        return shop;
+        return cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
-     * 互斥锁解决缓存穿透问题
+     * 互斥锁解决缓存击穿问题
+     * 原来是没抢到锁就休眠50ms再递归重试(有栈溢出的风险 同一个节点的每个请求都在轮询redis)
+     * 现在交给CacheClient: 同一个节点同一个key只有一个线程去抢锁 其他线程等它的结果
      *
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id) {
-        // 缓存的key
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商户缓存，得到的是JSON数据
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StringUtils.isNotBlank(shopJson)) {
-            // 3.存在，则直接返回 --> 使用JSONUtil工具类，把shopJson数据转换成Shop类的数据
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return shop;
-        }
-        // 判断命中的是否为空值
-        if (shopJson != null) {
-            return null;
-        }
-        // 4.实现缓存重建
-        // 4.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        Shop shop = null;
-        try {
-            boolean isLock = tryLock(lockKey);
-            // 4.2 判断是否获取成功
-            if (!isLock) {
-                // 4.3 失败，则休眠并重试
-                Thread.sleep(50);
-                // 递归 此处有栈溢出风险
-                return queryWithMutex(id);
-            }
-            // 4.4 不存在，则根据id查询数据库
-            shop = getById(id);
-            // 5.不存在，返回错误
-            if (shop == null) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                // 返回错误信息
-                return null;
-            }
-            // 模拟重建的延时
-            Thread.sleep(200);
-            // 6.存在，写入redis，写入的也是JSON数据，因此需要JsonStr工具类
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        } finally {
-            // 7.释放互斥锁
-            unlock(lockKey);
-        }
-        // 8.返回
-        return shop;
+        return cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     /**
-     * 逻辑过期解决缓存穿透的问题
+     * 逻辑过期解决缓存击穿的问题(要先用saveShop2Redis预热)
+     * 过期时间和数据的格式由CacheClient决定 也交给CacheClient
      *
      * @param id
      * @return
      */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 1.从redis查询商户缓存，得到的是JSON数据
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判断是否存在
-        if (StringUtils.isBlank(shopJson)) {
-            // 3.不存在，直接返回null
-            return null;
-        }
-        // 4.命中，需要先把JSON数据反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        JSONObject data = (JSONObject) redisData.getData();
-        Shop shop = JSONUtil.toBean(data, Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 5.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 5.1 未过期则直接返回店铺信息
-            return shop;
-        }
-        // 5.2 已经过期，需要进行缓存重建 —— 互斥锁
-        // 6.缓存重建
-        // 6.1 获取互斥锁
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        // 6.2 判断是否获取锁成功
-        if (isLock) {
-            // 6.3 TODO 成功，开启独立线程，实现缓存重建
-            // 尽量使用线程池操作，性能更好
-            // 注意：获取锁成功应该再次检测redis缓存是否过期，做DoubleCheck
-            // 如果存在则无需重建缓存
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShop2Redis(id, 20L);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    // 释放锁 --> 非常重要！！！
-                    unlock(lockKey);
-                }
-            });
-        }
-        // 6.4 返回过期的商铺信息
-        return shop;
-    }
-
-    /**
-     * 尝试获取锁的方法
-     *
-     * @param key
-     * @return
-     */
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
+        return cacheClient.queryWithLogiclExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class,
+                this::getById, 20L, TimeUnit.SECONDS);
     }
 
     /**
-     * 释放锁
+     * 预热逻辑过期的店铺缓存
      *
-     * @param key
+     * @param id            店铺id
+     * @param expireSeconds 逻辑过期时间(秒)
      */
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
-    }
-
     public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
         // 1.查询店铺数据
         Shop shop = getById(id);
         // 模拟缓存重建延迟
         Thread.sleep(200);
-        // 2.封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        // 3.写入Redis
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        // 2.写入Redis(带上逻辑过期时间)
+        cacheClient.setWithLogiclExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
 
@@ -255,8 +139,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 单体项目：数据库和缓存可以一起操作，如果是分布式项目，则使用TTC等方案
         // 1.更新数据库
         updateById(shop);
-        // 2.删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + id);
+        // 2.删除缓存(所有节点的本地缓存也一起删掉)
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + id);
         return Result.ok();
     }
 
@@ -305,11 +189,19 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceMap.put(shopIdStr, distance);
         });
-        // 5.根据id查询Shop
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-        for (Shop shop : shops) {
-            shop.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+        // 5.根据id查询Shop(一次mget 没命中的一次查数据库 顺序和ids一样)
+        List<Shop> cached = cacheClient.queryBatch(RedisConstants.CACHE_SHOP_KEY, ids, Shop.class,
+                this::listByIds, Shop::getId, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        List<Shop> shops = new ArrayList<>(cached.size());
+        for (Shop shop : cached) {
+            // 已经删掉的店铺geo里面可能还有
+            if (shop == null) {
+                continue;
+            }
+            // 本地缓存里面的对象是共用的 复制一份再设置距离
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distanceMap.get(shop.getId().toString()).getValue());
+            shops.add(copy);
         }
         // 6.返回
         return Result.ok(shops);
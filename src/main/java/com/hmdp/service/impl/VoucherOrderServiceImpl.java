@@ -3,32 +3,80 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SeckillTicketDTO;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.NodeInfo;
+import com.hmdp.utils.OrderResultNotifier;
+import com.hmdp.utils.OrderSpool;
+import com.hmdp.utils.OrderStreamMonitor;
+import com.hmdp.utils.OrderStreamRouter;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillMetrics;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockLease;
 import com.hmdp.utils.UserHolder;
+import io.lettuce.core.RedisNoScriptException;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.StreamMessage;
+import io.lettuce.core.XAutoClaimArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.models.stream.ClaimedMessages;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.TransientDataAccessResourceException;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 @Slf4j
 @Service
@@ -49,35 +97,252 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Autowired
     private RedissonClient redissonClient;
 
+    // 订单stream的分片路由
+    @Resource
+    private OrderStreamRouter orderStreamRouter;
+
+    // 本地的售罄标记
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    // 订单stream的积压监控(积压太多的时候拒绝新的秒杀请求)
+    @Resource
+    private OrderStreamMonitor orderStreamMonitor;
+
+    // 下单结果的通知
+    @Resource
+    private OrderResultNotifier orderResultNotifier;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    // 库存租约(大库存的券在本地扣库存)
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    // 数据库不可用的时候订单先落到本地磁盘
+    @Resource
+    private OrderSpool orderSpool;
+
+    // 本地的落盘队列是否在 seckill:spool:nodes 里面登记过(不为空的时候登记 重放完了取消)
+    // 一开始当作登记过 启动的时候是空的就顺便清掉上次(同一台机器同一个目录)留下的登记
+    private volatile boolean spoolRegistered = true;
+
+    // 登记和取消登记要和"是不是空的"的判断一起做 不然刚落盘的登记可能被重放线程删掉
+    private final Object spoolRegistration = new Object();
+
+    // 依靠tb_voucher_order的主键(订单id) + insert ignore 去重 只挡得住同一个订单的重复投递
+    // (user_id, voucher_id)上面是普通索引(一个人可以买多件) 所以打开后数据库不再兜底每人限购
+    // 不再加分布式锁 也不再查用户买了多少个 限购只靠lua脚本
+    @Value("${hmdp.seckill.persistence.order-id-dedup:false}")
+    private boolean orderIdDedupMode;
+
+    // lettuce的异步连接(非阻塞的秒杀用)
+    @Resource
+    private StatefulRedisConnection<String, String> redisAsyncConnection;
+
     // 执行lua脚本的静态代码块
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    // 返回值是 [结果, 订单id] 所以是list
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> SECKILL_SCRIPT;
 
     // 创建阻塞队列(这个因为有范围限制所以我们就不使用阻塞队列来实现了)
 //    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    // 创建线程池(单线程的)
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 消费者线程数(每个线程就是消费者组里面的一个消费者)
+    @Value("${hmdp.seckill.consumer.count:4}")
+    private int consumerCount;
+
+    // 每次xreadgroup最多读取多少条消息(一批消息一起处理 一起ack)
+    @Value("${hmdp.seckill.consumer.batch-size:50}")
+    private int batchSize;
+
+    // 同一个用户的订单正在被别的消费者处理 最多等多久(毫秒)用户锁 还拿不到就留在pending-list里面稍后重试
+    @Value("${hmdp.seckill.consumer.lock-wait:3000}")
+    private long orderLockWait;
+
+    // pending-list里面的消息空闲多久(毫秒)就认为消费者挂了 可以被认领
+    @Value("${hmdp.seckill.recovery.min-idle:30000}")
+    private long recoveryMinIdle;
+
+    // 一条消息最多投递多少次 超过了就进死信stream
+    @Value("${hmdp.seckill.recovery.max-deliveries:5}")
+    private long recoveryMaxDeliveries;
+
+    // 多久(秒)不支付自动取消 0表示不取消
+    // 默认不取消: 现在还没有支付的流程(没有地方把订单改成已支付) 打开的话所有秒杀订单到时间都会被取消
+    @Value("${hmdp.seckill.cancel.pay-timeout:0}")
+    private long payTimeout;
+
+    // 每个节点拉取到期订单的线程数
+    @Value("${hmdp.seckill.cancel.workers:2}")
+    private int cancelWorkers;
+
+    // 每次认领多少个到期的订单
+    @Value("${hmdp.seckill.cancel.batch-size:100}")
+    private int cancelBatchSize;
+
+    // 认领的租约(秒) 处理的线程挂了 租约到期以后别的线程会重新认领
+    @Value("${hmdp.seckill.cancel.lease:60}")
+    private long cancelLease;
+
+    // 非阻塞接口里面用库存租约的券 扣库存、续租、执行脚本都是同步调用 放到这个线程池里面做 不占tomcat线程
+    @Value("${hmdp.seckill.lease.async-workers:8}")
+    private int leaseAsyncWorkers;
+
+    // 线程池的排队上限 满了直接返回人数太多
+    @Value("${hmdp.seckill.lease.async-queue:1000}")
+    private int leaseAsyncQueue;
+
+    // 认领到期订单的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> ORDER_DUE_SCRIPT;
+
+    // 取消订单以后还redis库存的脚本
+    private static final DefaultRedisScript<Long> CANCEL_SCRIPT;
+
+    // 排队领号 查询的脚本
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> ROOM_SCRIPT;
+
+    // 创建线程池(原来是单线程的 现在是多个消费者)
+    private ExecutorService seckillOrderExecutor;
+
+    // 超时取消订单的线程池
+    private ExecutorService orderCancelExecutor;
+
+    // 非阻塞接口里面执行租约秒杀的线程池(有界)
+    private ExecutorService seckillLeaseExecutor;
 
     @PostConstruct //这个就是当这个类初始化后就执行
     private void init() {
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerCount);
         // 提交我们的线程任务(然后我们的run方法就执行了)
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 消费者的名字要在所有节点里面唯一 所以拼上节点的标识
+        for (int i = 0; i < consumerCount; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(NodeInfo.NODE_ID + "-c" + i));
+        }
+        if (payTimeout > 0) {
+            orderCancelExecutor = Executors.newFixedThreadPool(cancelWorkers);
+            for (int i = 0; i < cancelWorkers; i++) {
+                orderCancelExecutor.submit(new OrderCancelHandler());
+            }
+        }
+        seckillLeaseExecutor = new ThreadPoolExecutor(leaseAsyncWorkers, leaseAsyncWorkers,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(leaseAsyncQueue));
     }
 
-    private static final String queueName = "stream.order";
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+        if (orderCancelExecutor != null) {
+            orderCancelExecutor.shutdownNow();
+        }
+        seckillLeaseExecutor.shutdownNow();
+    }
+
+    // 超时未支付订单的取消线程(延迟队列 seckill:order:deadline 分数是支付截止时间)
+    private class OrderCancelHandler implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // 1.认领到期的订单
+                    List<?> due = stringRedisTemplate.execute(
+                            ORDER_DUE_SCRIPT,
+                            Collections.emptyList(),
+                            String.valueOf(RedisIdWorker.timestamp(LocalDateTime.now())),
+                            String.valueOf(cancelLease),
+                            String.valueOf(cancelBatchSize)
+                    );
+                    // 2.没有到期的 等一会
+                    if (due == null || due.isEmpty()) {
+                        Thread.sleep(1000);
+                        continue;
+                    }
+                    // 3.取消
+                    cancelDueOrders(due.stream().map(id -> Long.valueOf(id.toString())).collect(Collectors.toList()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    // 认领的订单还在延迟队列里面 租约到期以后重试
+                    log.error("取消超时订单异常", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 取消一批到期的订单
+     * 1.数据库里面未支付的改成已取消 同时把库存还给tb_seckill_voucher(一个事务)
+     * 2.库存还给redis 清掉售罄标记
+     * 3.处理完的从延迟队列删掉 还没落库的订单(消费者还没处理到)留着 租约到期再来
+     * 整个过程拿着对账的读锁 对账的时候不会看到一半的状态
+     */
+    private void cancelDueOrders(List<Long> orderIds) {
+        RLock lock = redissonClient.getReadWriteLock(SECKILL_RECONCILE_LOCK).readLock();
+        lock.lock();
+        List<VoucherOrder> orders;
+        try {
+            // 1.改状态 还数据库的库存(返回的是改之前的状态)
+            orders = proxy.cancelUnpaidOrders(orderIds);
+            // 2.还redis的库存 按优惠券一起还
+            Map<Long, Long> cancelled = orders.stream()
+                    .filter(o -> o.getStatus() == 1)
+                    .collect(Collectors.groupingBy(VoucherOrder::getVoucherId,
+                            Collectors.summingLong(VoucherOrder::getQuantity)));
+            cancelled.forEach((voucherId, count) -> {
+                stringRedisTemplate.execute(CANCEL_SCRIPT, Collections.emptyList(),
+                        voucherId.toString(), count.toString());
+                seckillSoldOutRegistry.reset(voucherId);
+                log.info("超时未支付订单已取消 voucherId={} count={}", voucherId, count);
+            });
+        } finally {
+            lock.unlock();
+        }
+        // 3.从延迟队列删掉 数据库里面还没有的订单 在截止时间之后再等一个超时时间 还没落库就不管了(多半进了死信)
+        Set<Long> found = orders.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        long now = RedisIdWorker.timestamp(LocalDateTime.now());
+        Object[] done = orderIds.stream()
+                .filter(id -> found.contains(id) || RedisIdWorker.timestampOf(id) + 2 * payTimeout < now)
+                .map(String::valueOf)
+                .toArray();
+        if (done.length > 0) {
+            stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_DEADLINE_KEY, done);
+        }
+    }
 
     // 消息队列的线程
     private class VoucherOrderHandler implements Runnable {
         //      注意要在秒杀活动开始之前开启这个消息队列(应该在我们这个类初始化的时候就开始任务)
 
+        // 当前消费者的名字
+        private final String consumerName;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
+
         @Override
         public void run() {
-            while (true) {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    // 1.获取(消息)队列中的订单信息 xread group g1 c1 count 1 block 2000 streams streams.order >
+                    // 0.当前节点没有分到分片(节点数比分片数多) 就等下一次重新分配
+                    StreamOffset<String>[] offsets = assignedOffsets(ReadOffset.lastConsumed());
+                    if (offsets.length == 0) {
+                        Thread.sleep(1000);
+                        continue;
+                    }
+                    // 1.获取(消息)队列中的订单信息 xreadgroup group g1 c1 count n block 2000 streams stream.order:{0} stream.order:{2} > >
                     List<MapRecord<String, Object, Object>> msg = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.from(">"))
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize).block(Duration.ofSeconds(2)),
+                            offsets
                     );
 
                     // 2.判断消息是否获取成功
@@ -86,72 +351,331 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                         continue;
                     }
 
-                    // 2.2 有消息就下单(表示有消息)
-                    // 创建订单(解析消息)
-                    MapRecord<String, Object, Object> record = msg.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    // 定义一个方法来实现我们的订单的创建
-                    // 这个就是转换为我们的订单  true 表示遇到异常就忽略
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-
-                    // 3.创建订单
-                    handVoucherOrder(voucherOrder);
-
-                    // 4.下单完成后还要进行ack的确认
-                    // 从record里面可以得到每一个的id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    // 2.2 有消息就下单(一批一起处理 一起ack)
+                    handVoucherOrderBatch(msg);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 } catch (Exception e) {
-                    // 在异常里面 就要弄我们的pending-list来获取当时发生异常没有处理的订单
+                    // 出了异常这一批消息还留在pending-list里面 交给recoverPendingOrders去认领重试
+                    // 这里不再死循环读pending-list 不然一条坏消息就会卡住新的订单
                     log.error("处理订单异常", e);
-                    handPendingList();
-
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
                 }
             }
         }
     }
 
-    private void handPendingList() {
-        while (true) {
+    /**
+     * 恢复pending-list里面的订单(替换原来只读自己c1的pending-list的做法)
+     * 1.用xautoclaim把所有消费者(包括挂掉的节点)里面空闲超过阈值的消息认领过来
+     * 2.投递次数超过上限的消息转到死信stream里面 然后ack掉 不让一条坏消息卡住整个队列
+     * 3.其余的重新下单 成功了就ack 失败了还留在pending-list里面等下一轮
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.recovery.interval:5000}")
+    public void recoverPendingOrders() {
+        for (String key : orderStreamRouter.getAssignedStreams()) {
+            try {
+                recoverPendingOrders(key);
+            } catch (Exception e) {
+                log.error("恢复pending-list订单异常 stream={}", key, e);
+            }
+        }
+    }
+
+    private void recoverPendingOrders(String key) {
+        String recoveryConsumer = NodeInfo.NODE_ID + "-recovery";
+        String startId = "0-0";
+        do {
+            // 1.xautoclaim stream.order:{k} g1 recovery min-idle-time start count n
+            XAutoClaimArgs<byte[]> args = new XAutoClaimArgs<byte[]>()
+                    .consumer(io.lettuce.core.Consumer.from(
+                            SECKILL_ORDER_GROUP.getBytes(StandardCharsets.UTF_8),
+                            recoveryConsumer.getBytes(StandardCharsets.UTF_8)))
+                    .minIdleTime(recoveryMinIdle)
+                    .startId(startId)
+                    .count(batchSize);
+            ClaimedMessages<byte[], byte[]> claimed = xautoclaim(key, args);
+            if (claimed == null) {
+                return;
+            }
+            List<StreamMessage<byte[], byte[]>> messages = claimed.getMessages();
+            if (!messages.isEmpty()) {
+                handClaimedOrders(key, recoveryConsumer, messages);
+            }
+            // 2.游标回到0-0就表示扫描完了
+            startId = claimed.getId();
+        } while (!"0-0".equals(startId) && !Thread.currentThread().isInterrupted());
+    }
 
+    private void handClaimedOrders(String key, String recoveryConsumer, List<StreamMessage<byte[], byte[]>> messages) {
+        // 1.查出这一批消息的投递次数 xpending stream.order:{k} g1 minId maxId count recovery
+        Map<String, Long> deliveries = new HashMap<>();
+        PendingMessages pending = stringRedisTemplate.opsForStream().pending(
+                key,
+                Consumer.from(SECKILL_ORDER_GROUP, recoveryConsumer),
+                Range.closed(messages.get(0).getId(), messages.get(messages.size() - 1).getId()),
+                messages.size());
+        pending.forEach(p -> deliveries.put(p.getIdAsString(), p.getTotalDeliveryCount()));
+
+        List<MapRecord<String, Object, Object>> retry = new ArrayList<>(messages.size());
+        for (StreamMessage<byte[], byte[]> message : messages) {
+            Map<Object, Object> values = new HashMap<>();
+            message.getBody().forEach((k, v) ->
+                    values.put(new String(k, StandardCharsets.UTF_8), new String(v, StandardCharsets.UTF_8)));
+            MapRecord<String, Object, Object> record = StreamRecords.mapBacked(values)
+                    .withStreamKey(key)
+                    .withId(RecordId.of(message.getId()));
+
+            long count = deliveries.getOrDefault(message.getId(), 0L);
+            if (count <= recoveryMaxDeliveries) {
+                retry.add(record);
+                continue;
+            }
+            // 2.投递次数太多了 转到死信stream 再ack掉
+            Map<Object, Object> dead = new HashMap<>(values);
+            dead.put("deliveries", String.valueOf(count));
+            deadLetter(dead, key, message.getId());
+            stringRedisTemplate.opsForStream().acknowledge(key, SECKILL_ORDER_GROUP, record.getId());
+            log.error("订单消息投递{}次仍然失败，转入死信队列 stream={} id={} values={}", count, key, message.getId(), values);
+        }
+        // 3.剩下的重新下单(成功了就会ack)
+        if (!retry.isEmpty()) {
+            handVoucherOrderBatch(retry);
+        }
+    }
+
+    /**
+     * 转到死信stream stream.order:dead 等人工处理
+     *
+     * @param values   订单消息的内容(再加上出错的信息)
+     * @param source   从哪来的(订单stream的key 或者 spool:节点id)
+     * @param sourceId 原来的消息id(落盘的订单就是订单id)
+     */
+    private void deadLetter(Map<Object, Object> values, String source, String sourceId) {
+        values.put("sourceStream", source);
+        values.put("sourceId", sourceId);
+        stringRedisTemplate.opsForStream().add(StreamRecords.mapBacked(values).withStreamKey(SECKILL_ORDER_DEAD_KEY));
+    }
+
+    /**
+     * spring data redis 还不支持xautoclaim 这里直接用lettuce的原生连接
+     */
+    @SuppressWarnings("unchecked")
+    private ClaimedMessages<byte[], byte[]> xautoclaim(String key, XAutoClaimArgs<byte[]> args) {
+        return stringRedisTemplate.execute((RedisCallback<ClaimedMessages<byte[], byte[]>>) connection -> {
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
             try {
-                // 1.获取我们的pending-list里面异常的订单  后面记得变为0
-                List<MapRecord<String, Object, Object>> msg = stringRedisTemplate.opsForStream().read(
-                        Consumer.from("g1", "c1"),
-                        StreamReadOptions.empty().count(1), // 这里就不需要我们的block因为异常里面就一定有消息
-                        StreamOffset.create(queueName, ReadOffset.from("0"))
-                );
-                // 注意这里我们改成了0 就表示一直读取 知道我们为空为止
-
-                // 2.获取我们的信息
-                if (msg == null || msg.isEmpty()) {
-                    // 2.1 如果pending-list没有信息了就退出去
-                    break;
+                return commands.xautoclaim(key.getBytes(StandardCharsets.UTF_8), args).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("xautoclaim失败", e.getCause());
+            }
+        });
+    }
+
+    /**
+     * 当前节点负责的所有分片 一次xreadgroup就能读多个分片
+     *
+     * @param readOffset 从哪里开始读 > 表示新消息 0 表示pending-list
+     * @return 每个分片的读取位置
+     */
+    @SuppressWarnings("unchecked")
+    private StreamOffset<String>[] assignedOffsets(ReadOffset readOffset) {
+        return orderStreamRouter.getAssignedStreams().stream()
+                .map(key -> StreamOffset.create(key, readOffset))
+                .toArray(StreamOffset[]::new);
+    }
+
+    /**
+     * 处理一批消息 处理完了每个分片用一条xack确认
+     * 逐条处理的时候出了异常的订单不ack 留在pending-list里面 由recoverPendingOrders重试(超过投递次数进死信)
+     * 其他的订单照常ack 重新处理的时候靠订单id来去重
+     *
+     * @param records 这一次xreadgroup读到的消息
+     */
+    private void handVoucherOrderBatch(List<MapRecord<String, Object, Object>> records) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+        // 一批里面可能有多个分片的消息 ack的时候要按分片分开
+        Map<String, List<RecordId>> recordIds = new HashMap<>();
+        for (MapRecord<String, Object, Object> record : records) {
+            // 1.解析消息 转换为我们的订单  true 表示遇到异常就忽略
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true);
+            // 加上购买数量之前发的消息没有quantity 就是买1个
+            if (voucherOrder.getQuantity() == null) {
+                voucherOrder.setQuantity(1);
+            }
+            voucherOrders.add(voucherOrder);
+            recordIds.computeIfAbsent(record.getStream(), k -> new ArrayList<>()).add(record.getId());
+        }
+        // 2.本地还有没重放完的订单 要排在它们后面 也先落盘(保证顺序)
+        if (!orderSpool.isEmpty()) {
+            spoolVoucherOrders(voucherOrders, recordIds);
+            return;
+        }
+        // 3.整批一个事务写入数据库
+        Set<Long> succeeded;
+        Map<Long, RuntimeException> errors = new HashMap<>();
+        try {
+            succeeded = persistVoucherOrders(voucherOrders, errors);
+        } catch (RuntimeException e) {
+            if (!isDatabaseUnavailable(e)) {
+                throw e;
+            }
+            // 3.1 数据库连不上 先落到本地磁盘 恢复以后再重放
+            log.error("数据库不可用，订单先写入本地落盘队列 count={}", voucherOrders.size(), e);
+            spoolVoucherOrders(voucherOrders, recordIds);
+            return;
+        }
+        // 4.出了异常的订单不ack(也不通知结果) 其他的每个分片一次性ack xack stream.order:{k} g1 id1 id2 ...
+        if (!errors.isEmpty()) {
+            recordIds.clear();
+            List<VoucherOrder> finished = new ArrayList<>(voucherOrders.size());
+            for (int i = 0; i < records.size(); i++) {
+                if (errors.containsKey(voucherOrders.get(i).getId())) {
+                    continue;
                 }
-                // 2.2 表示有信息
-                // 3.解析我们的信息
-                MapRecord<String, Object, Object> record = msg.get(0);
-                Map<Object, Object> values = record.getValue();
-                // 3.1 得到我们的订单信息
-                VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                // 4. 创建订单
-                handVoucherOrder(voucherOrder);
-                // 5. 进行ack
-                stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                finished.add(voucherOrders.get(i));
+                recordIds.computeIfAbsent(records.get(i).getStream(), k -> new ArrayList<>()).add(records.get(i).getId());
+            }
+            voucherOrders = finished;
+        }
+        recordIds.forEach((key, ids) ->
+                stringRedisTemplate.opsForStream().acknowledge(key, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+        // 5.写入下单结果 通知在等结果的用户
+        publishOrderResult(voucherOrders, succeeded);
+    }
 
-            } catch (Exception e) {
-                // 表示我们获取pending-list还出现了异常 那么这个还会流在pending-list里面
-                log.error("处理pending-list订单异常", e);
-                // 所以我们的就还要重新执行一遍(当走了几遍发现还是报错的话就设置一下就可以认为修改)
-//                handPendingList();
-                // 注意 你不用写上面的方法因为 我们这个while 是个死循环
+    /**
+     * 整批写入数据库 批量失败(事务已经回滚了)就退回到一条一条的创建订单
+     * 数据库连不上的异常直接抛出去(逐条也不会成功)
+     * 逐条处理的时候每一单单独捕获异常 一单出错不影响同一批的其他订单(已经提交了的不会因为后面的出错被重新投递)
+     *
+     * @param errors 出参 逐条处理的时候出了异常的订单 订单id -> 异常(既没成功也不算失败 要稍后重试)
+     * @return 已经在数据库里面的订单id
+     */
+    private Set<Long> persistVoucherOrders(List<VoucherOrder> voucherOrders, Map<Long, RuntimeException> errors) {
+        Set<Long> succeeded = new HashSet<>();
+        try {
+            proxy.createVoucherOrderBatch(voucherOrders).forEach(o -> succeeded.add(o.getId()));
+        } catch (RuntimeException e) {
+            if (isDatabaseUnavailable(e)) {
+                throw e;
+            }
+            log.error("批量创建订单失败，改为逐条处理", e);
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                try {
+                    if (handVoucherOrder(voucherOrder)) {
+                        succeeded.add(voucherOrder.getId());
+                    }
+                } catch (RuntimeException ex) {
+                    if (isDatabaseUnavailable(ex)) {
+                        throw ex;
+                    }
+                    log.error("创建订单异常 orderId={}", voucherOrder.getId(), ex);
+                    errors.put(voucherOrder.getId(), ex);
+                }
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * 是不是数据库连不上(拿不到连接 开不了事务 连接断了) 这种情况逐条重试也没用
+     */
+    private static boolean isDatabaseUnavailable(Throwable e) {
+        return e instanceof DataAccessResourceFailureException
+                || e instanceof TransientDataAccessResourceException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    /**
+     * 订单写到本地落盘队列(fsync之后) 再ack掉stream的消息 下单结果等重放的时候再通知
+     */
+    private void spoolVoucherOrders(List<VoucherOrder> voucherOrders, Map<String, List<RecordId>> recordIds) {
+        orderSpool.append(voucherOrders);
+        // 登记一下这个落盘队列里面还有没落库的订单(对账的时候不修复库存)
+        synchronized (spoolRegistration) {
+            stringRedisTemplate.opsForSet().add(SECKILL_SPOOL_NODES_KEY, orderSpool.id());
+            spoolRegistered = true;
+        }
+        recordIds.forEach((key, ids) ->
+                stringRedisTemplate.opsForStream().acknowledge(key, SECKILL_ORDER_GROUP, ids.toArray(new RecordId[0])));
+    }
+
+    private void publishOrderResult(List<VoucherOrder> voucherOrders, Set<Long> succeeded) {
+        try {
+            orderResultNotifier.publish(voucherOrders, succeeded);
+        } catch (Exception e) {
+            // 结果没通知到 用户轮询超时了会再来查 不影响下单
+            log.error("通知下单结果异常", e);
+        }
+    }
 
-                // 但是如果你怕一直处于这个状况的话 就可以进行线程的休眠
+    /**
+     * 按顺序重放本地落盘的订单 数据库还是连不上就停下来等下一轮
+     * 其他原因出错的订单转到死信stream 然后照样推进度(一单坏数据不能一直卡住落盘队列 落盘队列不空新的订单也都会落盘)
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.spool.replay-interval:1000}")
+    public void replaySpooledOrders() {
+        synchronized (spoolRegistration) {
+            if (orderSpool.isEmpty()) {
+                // 重放完了(或者本来就是空的) 取消登记 对账可以修复库存了
+                if (spoolRegistered) {
+                    stringRedisTemplate.opsForSet().remove(SECKILL_SPOOL_NODES_KEY, orderSpool.id());
+                    spoolRegistered = false;
+                }
+                return;
+            }
+            if (!spoolRegistered) {
+                // 重启之前落盘的也要登记
+                stringRedisTemplate.opsForSet().add(SECKILL_SPOOL_NODES_KEY, orderSpool.id());
+                spoolRegistered = true;
+            }
+        }
+        try {
+            int replayed = orderSpool.replay(batchSize, orders -> {
                 try {
-                    Thread.sleep(20);
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
+                    Map<Long, RuntimeException> errors = new HashMap<>();
+                    Set<Long> succeeded = persistVoucherOrders(orders, errors);
+                    List<VoucherOrder> finished = new ArrayList<>(orders.size());
+                    for (VoucherOrder order : orders) {
+                        RuntimeException error = errors.get(order.getId());
+                        if (error == null) {
+                            finished.add(order);
+                            continue;
+                        }
+                        Map<Object, Object> dead = new HashMap<>();
+                        dead.put("id", order.getId().toString());
+                        dead.put("userId", order.getUserId().toString());
+                        dead.put("voucherId", order.getVoucherId().toString());
+                        dead.put("quantity", order.getQuantity().toString());
+                        dead.put("error", String.valueOf(error));
+                        deadLetter(dead, "spool:" + NodeInfo.NODE_ID, order.getId().toString());
+                        log.error("重放本地订单失败，转入死信队列 orderId={}", order.getId());
+                    }
+                    publishOrderResult(finished, succeeded);
+                    return true;
+                } catch (RuntimeException e) {
+                    // 订单本身的错误上面已经转到死信了 这里只剩数据库不可用 或者死信写不进redis 都是下一轮再来
+                    if (!isDatabaseUnavailable(e)) {
+                        throw e;
+                    }
+                    log.warn("数据库仍不可用，稍后重放本地订单");
+                    return false;
                 }
+            });
+            if (replayed > 0) {
+                log.info("本地落盘的订单已重放 count={}", replayed);
             }
+        } catch (Exception e) {
+            log.error("重放本地订单异常", e);
         }
     }
 
@@ -177,26 +701,38 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
     }*/
 
+    // 自己的代理对象(事务要走代理) 启动的时候注入 消费者、恢复、重放、取消的线程拿不到AopContext
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Transactional
-    public void handVoucherOrder(VoucherOrder voucehrOrder) {
+    public boolean handVoucherOrder(VoucherOrder voucehrOrder) {
+        if (orderIdDedupMode) {
+            // 主键去重 同一个订单重复投递只会写一次 不需要锁
+            return proxy.createVoucherOrder(voucehrOrder);
+        }
         Long userId = voucehrOrder.getUserId();
         // 创建锁对象
         RLock lock = redissonClient.getLock("lock:order:" + userId);
-        // 获取锁
-        boolean flag = lock.tryLock();
+        // 获取锁(同一个用户的订单可能正在被别的消费者处理 等一会)
+        boolean flag;
+        try {
+            flag = lock.tryLock(orderLockWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("等待用户锁被中断 userId=" + userId, e);
+        }
 
         if (!flag) {
-            // 获取失败
-            log.error("不允许重复下单");
-            return;
+            // 获取失败不是下单失败(redis已经扣过库存了) 抛出去 这一单留在pending-list里面稍后重试
+            throw new IllegalStateException("用户的其他订单正在处理，稍后重试 userId=" + userId);
         }
         try {
             // 注意这个是子线程拿不到代理对象的 我们可以定义一个全部变量来实现
             // 然后在主线程里面就可以得到我们的代理对象了
 //            IVoucherOrderService proxy = (IVoucherOrderService) AopContext.currentProxy();
-            proxy.createVoucherOrder(voucehrOrder);
+            return proxy.createVoucherOrder(voucehrOrder);
         } finally {
             // 释放锁
             lock.unlock();
@@ -209,47 +745,54 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 这个classpathresouce就是直接在我们的resource里面去找
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         // 返回值
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(List.class);
+
+        ORDER_DUE_SCRIPT = new DefaultRedisScript<>();
+        ORDER_DUE_SCRIPT.setLocation(new ClassPathResource("seckill_order_due.lua"));
+        ORDER_DUE_SCRIPT.setResultType(List.class);
+
+        CANCEL_SCRIPT = new DefaultRedisScript<>();
+        CANCEL_SCRIPT.setLocation(new ClassPathResource("seckill_cancel.lua"));
+        CANCEL_SCRIPT.setResultType(Long.class);
+
+        ROOM_SCRIPT = new DefaultRedisScript<>();
+        ROOM_SCRIPT.setLocation(new ClassPathResource("seckill_room.lua"));
+        ROOM_SCRIPT.setResultType(List.class);
 
     }
 
     @Override
-    public Result seckillVoucher(Long voucherId) {
+    public Result seckillVoucher(Long voucherId, int quantity) {
+        // 一单至少买一个
+        if (quantity < 1) {
+            return Result.fail("购买数量不正确");
+        }
+        // 消费者跟不上了 先不放新的订单进来
+        if (orderStreamMonitor.isBackpressured()) {
+            seckillMetrics.increment(SeckillMetrics.BACKPRESSURE_REJECTED, 1);
+            return Result.fail("下单人数太多，请稍后再试");
+        }
         // 获取用户id
         Long userId = UserHolder.getUser().getId();
 //        System.out.println(userId);
-        // 获取订单id
-        // 注意这个是小写的long 因为我们当时怕拆箱的时候出现问题
-        long orderId = redisIdWorker.nextId("order");
-
-
+        // 用库存租约的券 先在本地扣库存
+        if (seckillStockLease.isLeased(voucherId)) {
+            return seckillVoucherLeased(voucherId, userId, quantity);
+        }
+        // 0.本地已经标记售罄了 就直接返回 不用再去redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足，无法购买");
+        }
         // 1.执行lua脚本
 //        Collections.emptyList(),传的空的因为我们的lua脚本里面是没有key的参数的
 //        但是你又不能传null进去
         // 就是发消息(stream.order)
-        Long flag = stringRedisTemplate.execute(
+        List<?> result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
                 Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(orderId)
+                (Object[]) seckillArgs(voucherId, userId, quantity)
         );
 
-
-        // 2.判断是否为0
-        // 先将long转为 int
-        int r = flag.intValue();
-        if (r != 0) {
-            // 2.1不为0 没有购买资格
-            // 表示不能购买
-            if (r == 1) {
-                return Result.fail("库存不足，无法购买");
-            } else if (r == 2) {
-                return Result.fail("你已经购买，不能重复下单");
-            }
-
-        }
-
 /*
 
         // 2.2 为0 有购买的资格  把下单信息保存到阻塞队列里面去
@@ -270,11 +813,296 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         orderTasks.add(voucherOrder);
 */
 
-        // 3. 获取代理对象(这个就是主线程的)
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        // 2.判断结果 4.返回id给用户
+        return toSeckillResult(voucherId, result);
+    }
+
+    /**
+     * 非阻塞的秒杀 用lettuce的异步api执行lua脚本 tomcat线程不用等redis返回
+     *
+     * @param voucherId 优惠券id
+     * @param quantity  买几个
+     * @return 秒杀结果(成功的话是订单id)
+     */
+    @Override
+    public CompletableFuture<Result> seckillVoucherAsync(Long voucherId, int quantity) {
+        if (quantity < 1) {
+            return CompletableFuture.completedFuture(Result.fail("购买数量不正确"));
+        }
+        if (orderStreamMonitor.isBackpressured()) {
+            seckillMetrics.increment(SeckillMetrics.BACKPRESSURE_REJECTED, 1);
+            return CompletableFuture.completedFuture(Result.fail("下单人数太多，请稍后再试"));
+        }
+        // 用户id要在tomcat线程里面取(ThreadLocal)
+        Long userId = UserHolder.getUser().getId();
+        // 用库存租约的券 库存在本地扣 但是续租和执行脚本都是同步调用 切到租约秒杀的线程池里面做
+        if (seckillStockLease.isLeased(voucherId)) {
+            try {
+                return CompletableFuture
+                        .supplyAsync(() -> seckillVoucherLeased(voucherId, userId, quantity), seckillLeaseExecutor)
+                        .exceptionally(e -> {
+                            log.error("秒杀异常", e);
+                            return Result.fail("服务器异常");
+                        });
+            } catch (RejectedExecutionException e) {
+                return CompletableFuture.completedFuture(Result.fail("下单人数太多，请稍后再试"));
+            }
+        }
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return CompletableFuture.completedFuture(Result.fail("库存不足，无法购买"));
+        }
 
+        String[] args = seckillArgs(voucherId, userId, quantity);
+        RedisAsyncCommands<String, String> commands = redisAsyncConnection.async();
+        // 先用evalsha 脚本还没有缓存(NOSCRIPT)的话再用eval
+        return commands.<List<Object>>evalsha(SECKILL_SCRIPT.getSha1(), ScriptOutputType.MULTI, new String[0], args)
+                .handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (e instanceof RedisNoScriptException || e.getCause() instanceof RedisNoScriptException) {
+                        return commands.<List<Object>>eval(SECKILL_SCRIPT.getScriptAsString(),
+                                ScriptOutputType.MULTI, new String[0], args).toCompletableFuture();
+                    }
+                    CompletableFuture<List<Object>> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                })
+                .thenCompose(Function.identity())
+                // 售罄的时候还要发广播(同步调用) 不能在lettuce的io线程里面做 切到别的线程
+                .handleAsync((result, e) -> {
+                    if (e != null) {
+                        log.error("秒杀异常", e);
+                        return Result.fail("服务器异常");
+                    }
+                    return toSeckillResult(voucherId, result);
+                })
+                .toCompletableFuture();
+    }
 
+    /**
+     * 用库存租约的秒杀
+     * 1.本地租约里面CAS扣quantity个 本地不够了再去redis续租(续租也不够才算售罄)
+     * 2.执行秒杀脚本 带上节点id 脚本里面不再检查redis的库存 只检查节点手里的租约够不够 再做时间窗口 限购 生成订单 发消息
+     * 3.没有下单成功的 库存还回本地
+     * 4.租约已经被回收了(节点被误判成挂了) 丢掉本地的租约 重新租一次再试
+     */
+    private Result seckillVoucherLeased(Long voucherId, Long userId, int quantity) {
+        for (int attempt = 0; ; attempt++) {
+            // 1.扣本地库存
+            SeckillStockLease.Lease lease = seckillStockLease.tryAcquireLocal(voucherId, quantity);
+            if (lease == null) {
+                if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+                    return Result.fail("库存不足，无法购买");
+                }
+                lease = seckillStockLease.renewAndAcquire(voucherId, quantity);
+                if (lease == null) {
+                    // 还剩一些但是不够这一单 不能标记售罄(买得少的还能买到)
+                    if (seckillStockLease.hasLocalStock(voucherId)) {
+                        return Result.fail("库存不足，请减少购买数量");
+                    }
+                    // 租不到可能是售罄了 也可能是还没预热、已经卸载了 不用租约执行一次脚本 按它的结果返回(售罄了才标记)
+                    List<?> result = stringRedisTemplate.execute(
+                            SECKILL_SCRIPT, Collections.emptyList(), (Object[]) seckillArgs(voucherId, userId, quantity));
+                    return toSeckillResult(voucherId, result);
+                }
+            }
+            // 2.执行lua脚本
+            List<?> result;
+            try {
+                String[] args = seckillArgs(voucherId, userId, quantity);
+                String[] leasedArgs = Arrays.copyOf(args, args.length + 1);
+                leasedArgs[args.length] = NodeInfo.NODE_ID;
+                result = stringRedisTemplate.execute(SECKILL_SCRIPT, Collections.emptyList(), (Object[]) leasedArgs);
+            } catch (RuntimeException e) {
+                seckillStockLease.release(lease, quantity);
+                throw e;
+            }
+            int r = ((Long) result.get(0)).intValue();
+            // 4.租约被回收了 本地的库存不作数 丢掉重新租(只重试一次)
+            if (r == 6) {
+                seckillStockLease.revoke(voucherId, lease);
+                if (attempt == 0) {
+                    continue;
+                }
+                return Result.fail("下单人数太多，请稍后再试");
+            }
+            // 3.没抢到 还回本地
+            if (r != 0) {
+                seckillStockLease.release(lease, quantity);
+            }
+            return toSeckillResult(voucherId, result);
+        }
+    }
+
+    /**
+     * 长轮询查询下单结果
+     *
+     * @param orderId 订单id
+     * @return 0:处理中 1:下单成功 2:下单失败
+     */
+    @Override
+    public DeferredResult<Result> queryOrderResult(Long orderId) {
+        return orderResultNotifier.await(orderId, UserHolder.getUser().getId());
+    }
+
+    /**
+     * 查询订单 刚秒杀成功还没落库的订单从redis的下单记录里面返回 落库了再查数据库
+     *
+     * @param orderId 订单id
+     * @return 订单
+     */
+    @Override
+    public Result queryOrder(Long orderId) {
+        Long userId = UserHolder.getUser().getId();
+        // 1.先查redis里面的下单记录 用户id:状态:优惠券id:数量
+        String record = stringRedisTemplate.opsForValue().get(SECKILL_ORDER_RESULT_KEY + orderId);
+        if (record != null) {
+            String[] parts = record.split(":");
+            if (!userId.toString().equals(parts[0])) {
+                return Result.fail("订单不存在");
+            }
+            int status = Integer.parseInt(parts[1]);
+            if (status == OrderResultNotifier.FAILED) {
+                return Result.fail("下单失败");
+            }
+            // 1.1.还没落库 用下单记录拼出订单(未支付)
+            if (status == OrderResultNotifier.PROCESSING && parts.length > 2) {
+                VoucherOrder voucherOrder = new VoucherOrder()
+                        .setId(orderId)
+                        .setUserId(userId)
+                        .setVoucherId(Long.valueOf(parts[2]))
+                        .setQuantity(parts.length > 3 ? Integer.valueOf(parts[3]) : 1)
+                        .setStatus(1)
+                        .setCreateTime(RedisIdWorker.timeOf(orderId));
+                return Result.ok(voucherOrder);
+            }
+        }
+        // 2.已经落库了(或者记录过期了) 查数据库
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !voucherOrder.getUserId().equals(userId)) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(voucherOrder);
+    }
+
+    /**
+     * 排队领号(开启了排队的券 要先领号 轮到了才能秒杀) 已经领过的返回原来的号
+     *
+     * @param voucherId 优惠券id
+     * @return 号码和排队的进度
+     */
+    @Override
+    public Result takeSeckillTicket(Long voucherId) {
+        return seckillTicket(voucherId, "take");
+    }
+
+    /**
+     * 查询排到哪了(同时推进放行的进度)
+     *
+     * @param voucherId 优惠券id
+     * @return 号码和排队的进度
+     */
+    @Override
+    public Result querySeckillTicket(Long voucherId) {
+        return seckillTicket(voucherId, "query");
+    }
+
+    private Result seckillTicket(Long voucherId, String mode) {
+        Long userId = UserHolder.getUser().getId();
+        // 1.执行排队脚本 [号码, 放行到第几号, 每秒放行多少个] 没有开启排队的是 [-1]
+        List<?> result = stringRedisTemplate.execute(
+                ROOM_SCRIPT,
+                Collections.emptyList(),
+                voucherId.toString(),
+                userId.toString(),
+                mode
+        );
+        SeckillTicketDTO ticket = new SeckillTicketDTO();
+        long position = (Long) result.get(0);
+        // 2.不需要排队 直接放行
+        if (position < 0) {
+            ticket.setPosition(0L);
+            ticket.setFrontier(0L);
+            ticket.setAdmitted(true);
+            ticket.setWaitMillis(0L);
+            return Result.ok(ticket);
+        }
+        // 3.还没领号
+        if (position == 0) {
+            return Result.fail("请先领取排队号码");
+        }
+        long frontier = (Long) result.get(1);
+        long rate = (Long) result.get(2);
+        ticket.setPosition(position);
+        ticket.setFrontier(frontier);
+        ticket.setAdmitted(position <= frontier);
+        // 4.按放行的速度估算还要等多久 最少等1秒 避免客户端一直刷
+        ticket.setWaitMillis(position <= frontier ? 0L : Math.max(1000L, (position - frontier) * 1000 / rate));
+        return Result.ok(ticket);
+    }
+
+    /**
+     * 秒杀的计数(重复订单等)
+     */
+    @Override
+    public Result queryMetrics() {
+        Map<String, Object> metrics = new TreeMap<>(seckillMetrics.snapshot());
+        // 订单stream的积压情况
+        metrics.put("backpressured", orderStreamMonitor.isBackpressured());
+        metrics.put("streams", orderStreamMonitor.snapshot());
+        return Result.ok(metrics);
+    }
+
+    /**
+     * 秒杀脚本的参数
+     * 订单id不再单独调用redisIdWorker.nextId("order")了(少一次redis往返 没抢到的也不会浪费id)
+     * 时间戳和自增key还是按RedisIdWorker的规则在这里算好 序列号的自增放到lua脚本里面
+     */
+    private String[] seckillArgs(Long voucherId, Long userId, int quantity) {
+        LocalDateTime now = LocalDateTime.now();
+        return new String[]{
+                voucherId.toString(),
+                userId.toString(),
+                String.valueOf(RedisIdWorker.timestamp(now)),
+                RedisIdWorker.counterKey("order", now),
+                String.valueOf(orderStreamRouter.getShardCount()),
+                String.valueOf(payTimeout),
+                String.valueOf(TimeUnit.MINUTES.toSeconds(SECKILL_ORDER_RESULT_TTL)),
+                String.valueOf(quantity)
+        };
+    }
+
+    /**
+     * 把秒杀脚本的返回值 [结果, 订单id] 转成返回给用户的结果
+     */
+    private Result toSeckillResult(Long voucherId, List<?> result) {
+        // 2.判断是否为0
+        // 先将long转为 int
+        int r = ((Long) result.get(0)).intValue();
+        if (r != 0) {
+            // 2.1不为0 没有购买资格
+            // 表示不能购买
+            if (r == 1) {
+                // 标记售罄 后面的请求就不用再来redis了
+                seckillSoldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足，无法购买");
+            } else if (r == 2) {
+                return Result.fail("超过每人限购数量，不能继续购买");
+            } else if (r == 3) {
+                return Result.fail("秒杀尚未开始");
+            } else if (r == 4) {
+                return Result.fail("秒杀已经结束");
+            } else if (r == 5) {
+                return Result.fail("还没有排到你，请稍后再试");
+            } else if (r == 7) {
+                // 还有库存 只是不够这一单 不标记售罄
+                return Result.fail("库存不足，请减少购买数量");
+            }
+
+        }
         // 4.返回id给用户
+        long orderId = Long.parseLong((String) result.get(1));
         return Result.ok(orderId);
     }
 
@@ -403,9 +1231,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }*/
 
-    // 传整个订单对象
+    // 传整个订单对象 返回这个订单是否已经在数据库里面了
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        if (orderIdDedupMode) {
+            return createVoucherOrderIgnoreDuplicate(voucherOrder);
+        }
         // 不同用户加不同锁  同一个用户 加同一个锁 就可以实现
 
 
@@ -429,15 +1260,22 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         // 释放我们的锁)
 
 
-        // 5. 一人一单  就是一个人只能买一张优惠券
-        // 5.1查询我们的用户id 和 我们这个优惠券id 就可以判断这个用户是否重复卖了 优惠券
-        Integer count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
+        // 5. 每人限购  一个人买的数量加起来不能超过限购数量
+        // 5.1查询我们的用户id 和 我们这个优惠券id 就可以知道这个用户已经买了几个
+        List<VoucherOrder> orders = query().select("id", "quantity")
+                .eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).list();
 
-        // 5.2判断订单是否存在
-        if (count > 0) {
-            // 5.3 如果如在直接返回
-            log.error("你已经购买,每人限购一份!");
-            return;
+        // 5.2 如果这一单已经在了直接返回(pending-list重新处理的就是这一单自己 也算成功)
+        if (orders.stream().anyMatch(o -> o.getId().equals(voucherOrder.getId()))) {
+            return true;
+        }
+        // 5.3 判断加上这一单有没有超过限购
+        int bought = orders.stream().mapToInt(VoucherOrder::getQuantity).sum();
+        int limit = userLimitsOf(Collections.singleton(voucherOrder.getVoucherId()))
+                .getOrDefault(voucherOrder.getVoucherId(), 1);
+        if (bought + voucherOrder.getQuantity() > limit) {
+            log.error("超过每人限购数量! orderId={}", voucherOrder.getId());
+            return false;
         }
 
         // 发现确实没有买过 就减少库存
@@ -450,11 +1288,12 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 如果连个同时发生 a买是 库存为 10 b买是库存也是10 但是a快一步 那么我们的stock 就要减一
         // b买是就要比较当时存的stock和我们数据库的stock是否一样 不一样就买一下一个 他的就自动减一  只要他在买的时候与数据库对比 是否>0就可以买  就这么简单
-        boolean flag = iSeckillVoucherService.update().setSql("stock = stock - 1").eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0).update();
+        int quantity = voucherOrder.getQuantity();
+        boolean flag = iSeckillVoucherService.update().setSql("stock = stock - " + quantity).eq("voucher_id", voucherOrder.getVoucherId()).ge("stock", quantity).update();
         if (!flag) {
             // 表示扣减失败
             log.error("库存不足");
-            return;
+            return false;
 
         }
 
@@ -481,6 +1320,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
         // 8.写入数据库
         save(voucherOrder);
+        return true;
 
         // 9.返回订单id
         // 返回到我们的页面上
@@ -488,4 +1328,194 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //        return Result.ok();
 //        }
     }
+
+    /**
+     * 批量创建订单(组提交)
+     * 一次查询做每人限购的判断 每个优惠券只扣一次库存(stock = stock - 这一批的数量) 再用一条多行insert写入订单
+     * 全部在一个事务里面 任何一步失败都整体回滚 由调用方退回到逐条处理
+     *
+     * @param voucherOrders 一批订单
+     * @return 已经在数据库里面的订单(这次新写入的 加上之前已经写入过的同一个订单)
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        if (orderIdDedupMode) {
+            return createVoucherOrderBatchIgnoreDuplicate(voucherOrders);
+        }
+        // 1.每人限购 一次把这一批里面的(用户,优惠券)已经下过的订单都查出来
+        Set<Long> userIds = voucherOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = voucherOrders.stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existing = query().select("id", "user_id", "voucher_id", "quantity")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        // 已经在数据库里面的订单id
+        Set<Long> existIds = existing.stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        // (用户:优惠券) -> 已经买了几个
+        Map<String, Integer> bought = existing.stream().collect(Collectors.toMap(
+                o -> o.getUserId() + ":" + o.getVoucherId(), VoucherOrder::getQuantity, Integer::sum));
+        Map<Long, Integer> limits = userLimitsOf(voucherIds);
+
+        // 2.过滤掉已经写进去的(pending-list重新处理的时候就会有)和超过限购的 同一批里面重复的也只留一条
+        List<VoucherOrder> persisted = new ArrayList<>(voucherOrders.size());
+        List<VoucherOrder> toSave = new ArrayList<>(voucherOrders.size());
+        Set<Long> seen = new HashSet<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!seen.add(voucherOrder.getId())) {
+                continue;
+            }
+            if (existIds.contains(voucherOrder.getId())) {
+                // 之前已经写进去了的同一个订单
+                persisted.add(voucherOrder);
+                continue;
+            }
+            String key = voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId();
+            int quantity = bought.getOrDefault(key, 0) + voucherOrder.getQuantity();
+            if (quantity > limits.getOrDefault(voucherOrder.getVoucherId(), 1)) {
+                log.error("超过每人限购数量! orderId={}", voucherOrder.getId());
+                continue;
+            }
+            bought.put(key, quantity);
+            toSave.add(voucherOrder);
+        }
+        if (toSave.isEmpty()) {
+            return persisted;
+        }
+
+        // 3.按优惠券分组 每个优惠券扣一次库存
+        // 用TreeMap按优惠券id排好序 多个消费者同时更新的时候加行锁的顺序一致 避免死锁
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = toSave.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new, Collectors.toList()));
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            int count = entry.getValue().stream().mapToInt(VoucherOrder::getQuantity).sum();
+            boolean flag = iSeckillVoucherService.update()
+                    .setSql("stock = stock - " + count)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", count)
+                    .update();
+            if (!flag) {
+                // 库存不够整批扣 抛异常回滚 交给逐条处理
+                throw new IllegalStateException("库存不足，voucherId=" + entry.getKey());
+            }
+        }
+
+        // 4.一条多行insert写入数据库
+        getBaseMapper().insertBatch(toSave);
+        persisted.addAll(toSave);
+        return persisted;
+    }
+
+    /**
+     * 主键去重模式下创建一个订单 先insert ignore 插进去了再扣库存
+     * 库存不够的话把事务标记为回滚(订单也就不在了)
+     */
+    private boolean createVoucherOrderIgnoreDuplicate(VoucherOrder voucherOrder) {
+        // 1.insert ignore 被主键挡掉就是0 说明同一个订单重复投递 已经写进去了 也算成功
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            seckillMetrics.increment(SeckillMetrics.DUPLICATE_ORDERS, 1);
+            return true;
+        }
+        // 2.扣库存
+        int quantity = voucherOrder.getQuantity();
+        boolean flag = iSeckillVoucherService.update().setSql("stock = stock - " + quantity)
+                .eq("voucher_id", voucherOrder.getVoucherId()).ge("stock", quantity).update();
+        if (!flag) {
+            log.error("库存不足");
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 主键去重模式下批量创建订单
+     * 先按主键查出已经写进去的订单(重复投递的) 剩下的每个优惠券一条多行insert ignore 扣一次库存
+     * insert ignore插进去的行数不对说明有别的消费者同时在写同一批订单 抛异常回滚 交给逐条处理
+     */
+    private List<VoucherOrder> createVoucherOrderBatchIgnoreDuplicate(List<VoucherOrder> voucherOrders) {
+        // 1.已经写进去的订单
+        Set<Long> existIds = query().select("id")
+                .in("id", voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toSet()))
+                .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+        List<VoucherOrder> persisted = new ArrayList<>(voucherOrders.size());
+        Set<Long> seen = new HashSet<>();
+        // 按优惠券id排好序 加锁顺序一致 避免死锁
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = new TreeMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!seen.add(voucherOrder.getId())) {
+                continue;
+            }
+            if (existIds.contains(voucherOrder.getId())) {
+                persisted.add(voucherOrder);
+            } else {
+                ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+            }
+        }
+        if (!existIds.isEmpty()) {
+            seckillMetrics.increment(SeckillMetrics.DUPLICATE_ORDERS, existIds.size());
+        }
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            List<VoucherOrder> orders = entry.getValue();
+            // 2.insert ignore 插进去的行数要和订单数一样
+            int inserted = getBaseMapper().insertIgnoreBatch(orders);
+            if (inserted != orders.size()) {
+                throw new IllegalStateException("订单被重复写入，voucherId=" + entry.getKey());
+            }
+            // 3.按这一批的数量扣库存
+            int quantity = orders.stream().mapToInt(VoucherOrder::getQuantity).sum();
+            boolean flag = iSeckillVoucherService.update()
+                    .setSql("stock = stock - " + quantity)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", quantity)
+                    .update();
+            if (!flag) {
+                throw new IllegalStateException("库存不足，voucherId=" + entry.getKey());
+            }
+            persisted.addAll(orders);
+        }
+        return persisted;
+    }
+
+    /**
+     * 查每个优惠券每人限购几个(没有配置的是1个)
+     */
+    private Map<Long, Integer> userLimitsOf(Collection<Long> voucherIds) {
+        return iSeckillVoucherService.query().select("voucher_id", "user_limit")
+                .in("voucher_id", voucherIds).list().stream()
+                .filter(v -> v.getUserLimit() != null)
+                .collect(Collectors.toMap(SeckillVoucher::getVoucherId, SeckillVoucher::getUserLimit));
+    }
+
+    /**
+     * 取消未支付的订单 改成已取消 库存还给tb_seckill_voucher
+     * 先for update锁住这些订单 这期间支付的话会等这个事务提交 不会出现付了钱又被取消
+     *
+     * @param orderIds 到期的订单id
+     * @return 数据库里面找到的订单(状态是取消之前的 状态为1的就是这次取消掉的)
+     */
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 1.锁住订单 select ... for update
+        List<VoucherOrder> orders = query().select("id", "voucher_id", "quantity", "status")
+                .in("id", orderIds)
+                .last("FOR UPDATE")
+                .list();
+        // 2.未支付(1)的改成已取消(4)
+        List<Long> unpaid = orders.stream().filter(o -> o.getStatus() == 1)
+                .map(VoucherOrder::getId).collect(Collectors.toList());
+        if (unpaid.isEmpty()) {
+            return orders;
+        }
+        update().set("status", 4).in("id", unpaid).eq("status", 1).update();
+        // 3.按优惠券还库存 按优惠券id排好序加锁 避免死锁
+        Map<Long, Long> counts = orders.stream().filter(o -> o.getStatus() == 1)
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, TreeMap::new,
+                        Collectors.summingLong(VoucherOrder::getQuantity)));
+        counts.forEach((voucherId, count) -> iSeckillVoucherService.update()
+                .setSql("stock = stock + " + count)
+                .eq("voucher_id", voucherId)
+                .update());
+        return orders;
+    }
 }
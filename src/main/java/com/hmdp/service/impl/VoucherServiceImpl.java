@@ -7,24 +7,17 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
-
 @Service
 public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> implements IVoucherService {
     @Resource
     private ISeckillVoucherService seckillVoucherService;
 
-    // 注入string
-    @Resource
-    private StringRedisTemplate stringRedisTemplate;
-
 
     /**
      * 查询店铺的优惠券列表
@@ -56,13 +49,21 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         SeckillVoucher seckillVoucher = new SeckillVoucher();
         seckillVoucher.setVoucherId(voucher.getId());
         seckillVoucher.setStock(voucher.getStock());
+        seckillVoucher.setUserLimit(voucher.getUserLimit() == null ? 1 : voucher.getUserLimit());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        // 库存租约 排队的配置存在mysql里面(redis数据丢了重建的时候还要用)
+        seckillVoucher.setLeaseChunk(voucher.getLeaseChunk() == null ? 0 : Math.max(voucher.getLeaseChunk(), 0));
+        seckillVoucher.setRoomRate(voucher.getWaitingRoomRate() == null ? 0 : Math.max(voucher.getWaitingRoomRate(), 0));
         seckillVoucherService.save(seckillVoucher);
 
-        // 保存到redis中
-        // 键就是我们的优惠圈的id 值就是我们的库存
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(), voucher.getStock().toString());
+        // 配置马上写到redis(开始之前就可以排队领号)
+        seckillVoucherService.applySeckillConfig(seckillVoucher);
+        // 保存到redis中(库存 时间窗口 下单用户集合)
+        // 马上就要开始的直接加载 其他的等定时任务在开始前预热
+        if (seckillVoucherService.isPrewarmDue(seckillVoucher)) {
+            seckillVoucherService.loadSeckillVoucher(seckillVoucher);
+        }
 
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,39 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 管理接口的拦截器(比如重建秒杀状态 会扫全部订单、改写库存 不能让普通用户调用)
+ * 请求头 X-Admin-Token 要和 hmdp.admin.token 一样 没有配置token的时候全部拒绝
+ */
+@Slf4j
+@Component
+public class AdminTokenInterceptor implements HandlerInterceptor {
+
+    private static final String HEADER = "X-Admin-Token";
+
+    @Value("${hmdp.admin.token:}")
+    private String adminToken;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String token = request.getHeader(HEADER);
+        // 比较的时候用固定时间的比较 不从耗时上泄露token
+        if (StrUtil.isBlank(adminToken) || token == null || !MessageDigest.isEqual(
+                adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("管理接口没有权限 uri={} ip={}", request.getRequestURI(), request.getRemoteAddr());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
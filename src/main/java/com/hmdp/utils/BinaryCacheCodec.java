@@ -0,0 +1,322 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 紧凑的二进制编码(只支持字段都是简单类型的实体类 比如Shop、User)
+ * 1.不写字段名 按字段名排好序依次写字段的值 整数用变长编码 时间写成秒数
+ * 2.开头写4个字节的结构哈希(字段名+类型算出来的) 类的字段改了哈希就对不上 解码返回null当作没有缓存
+ * 3.接着是空值位图 每个字段一位 为null的字段不写值
+ */
+@Slf4j
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    public static final int ID = 1;
+
+    // 类 -> 字段结构(不支持的类也缓存一下 避免每次都反射)
+    private final Map<Class<?>, Schema> schemas = new ConcurrentHashMap<>();
+
+    private static final Schema UNSUPPORTED = new Schema(null, null, null, 0);
+
+    private enum Kind {
+        BOOLEAN, BYTE, SHORT, INT, LONG, FLOAT, DOUBLE, STRING, DECIMAL, DATE, DATE_TIME
+    }
+
+    private static final Map<Class<?>, Kind> KINDS = new HashMap<>();
+
+    static {
+        KINDS.put(Boolean.class, Kind.BOOLEAN);
+        KINDS.put(boolean.class, Kind.BOOLEAN);
+        KINDS.put(Byte.class, Kind.BYTE);
+        KINDS.put(byte.class, Kind.BYTE);
+        KINDS.put(Short.class, Kind.SHORT);
+        KINDS.put(short.class, Kind.SHORT);
+        KINDS.put(Integer.class, Kind.INT);
+        KINDS.put(int.class, Kind.INT);
+        KINDS.put(Long.class, Kind.LONG);
+        KINDS.put(long.class, Kind.LONG);
+        KINDS.put(Float.class, Kind.FLOAT);
+        KINDS.put(float.class, Kind.FLOAT);
+        KINDS.put(Double.class, Kind.DOUBLE);
+        KINDS.put(double.class, Kind.DOUBLE);
+        KINDS.put(String.class, Kind.STRING);
+        KINDS.put(BigDecimal.class, Kind.DECIMAL);
+        KINDS.put(LocalDate.class, Kind.DATE);
+        KINDS.put(LocalDateTime.class, Kind.DATE_TIME);
+    }
+
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final Kind[] kinds;
+        private final int hash;
+
+        Schema(Constructor<?> constructor, Field[] fields, Kind[] kinds, int hash) {
+            this.constructor = constructor;
+            this.fields = fields;
+            this.kinds = kinds;
+            this.hash = hash;
+        }
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemaOf(type) != UNSUPPORTED;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Schema schema = schemaOf(value.getClass());
+        if (schema == UNSUPPORTED) {
+            throw new IllegalArgumentException("不支持二进制编码的类型 " + value.getClass().getName());
+        }
+        try {
+            Output out = new Output();
+            // 1.结构哈希
+            out.writeInt(schema.hash);
+            // 2.空值位图
+            Object[] values = new Object[schema.fields.length];
+            byte[] present = new byte[(schema.fields.length + 7) / 8];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = schema.fields[i].get(value);
+                if (values[i] != null) {
+                    present[i >>> 3] |= 1 << (i & 7);
+                }
+            }
+            out.write(present, 0, present.length);
+            // 3.不为null的字段依次写进去
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    writeValue(out, schema.kinds[i], values[i]);
+                }
+            }
+            return out.toByteArray();
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Schema schema = schemaOf(type);
+        if (schema == UNSUPPORTED) {
+            return null;
+        }
+        try {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            // 1.结构对不上(类的字段改过了) 当作没有缓存
+            if (in.getInt() != schema.hash) {
+                return null;
+            }
+            byte[] present = new byte[(schema.fields.length + 7) / 8];
+            in.get(present);
+            Object r = schema.constructor.newInstance();
+            for (int i = 0; i < schema.fields.length; i++) {
+                if ((present[i >>> 3] & (1 << (i & 7))) != 0) {
+                    schema.fields[i].set(r, readValue(in, schema.kinds[i]));
+                }
+            }
+            return type.cast(r);
+        } catch (RuntimeException | ReflectiveOperationException e) {
+            // 数据坏了会有各种异常(读越界 长度是负数 时间超出范围 数字格式不对...) 都当作没有缓存
+            log.warn("二进制缓存解码失败 type={}", type.getName(), e);
+            return null;
+        }
+    }
+
+    private Schema schemaOf(Class<?> type) {
+        return schemas.computeIfAbsent(type, BinaryCacheCodec::buildSchema);
+    }
+
+    /**
+     * 找出类(包括父类)所有的非static、非transient字段 按名字排序 有一个字段不支持整个类就不支持
+     */
+    private static Schema buildSchema(Class<?> type) {
+        if (KINDS.containsKey(type) || type.isInterface() || type.isArray()
+                || Modifier.isAbstract(type.getModifiers()) || type.getName().startsWith("java.")) {
+            return UNSUPPORTED;
+        }
+        Constructor<?> constructor;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            return UNSUPPORTED;
+        }
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                if (!KINDS.containsKey(field.getType())) {
+                    return UNSUPPORTED;
+                }
+                field.setAccessible(true);
+                fields.add(field);
+            }
+        }
+        fields.sort(Comparator.comparing(Field::getName));
+        Kind[] kinds = new Kind[fields.size()];
+        StringBuilder signature = new StringBuilder(type.getName());
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = KINDS.get(fields.get(i).getType());
+            signature.append(';').append(fields.get(i).getName()).append(':').append(kinds[i]);
+        }
+        return new Schema(constructor, fields.toArray(new Field[0]), kinds, signature.toString().hashCode());
+    }
+
+    private static void writeValue(Output out, Kind kind, Object value) {
+        switch (kind) {
+            case BOOLEAN:
+                out.write((Boolean) value ? 1 : 0);
+                break;
+            case BYTE:
+            case SHORT:
+            case INT:
+            case LONG:
+                out.writeVarLong(((Number) value).longValue());
+                break;
+            case FLOAT:
+                out.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case DOUBLE:
+                out.writeLong(Double.doubleToLongBits((Double) value));
+                break;
+            case STRING:
+                out.writeString((String) value);
+                break;
+            case DECIMAL:
+                out.writeString(((BigDecimal) value).toString());
+                break;
+            case DATE:
+                out.writeVarLong(((LocalDate) value).toEpochDay());
+                break;
+            case DATE_TIME:
+                LocalDateTime time = (LocalDateTime) value;
+                out.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarLong(time.getNano());
+                break;
+            default:
+                throw new IllegalStateException(kind.name());
+        }
+    }
+
+    private static Object readValue(ByteBuffer in, Kind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return in.get() != 0;
+            case BYTE:
+                return (byte) readVarLong(in);
+            case SHORT:
+                return (short) readVarLong(in);
+            case INT:
+                return (int) readVarLong(in);
+            case LONG:
+                return readVarLong(in);
+            case FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case STRING:
+                return readString(in);
+            case DECIMAL:
+                return new BigDecimal(readString(in));
+            case DATE:
+                return LocalDate.ofEpochDay(readVarLong(in));
+            case DATE_TIME:
+                long seconds = readVarLong(in);
+                return LocalDateTime.ofEpochSecond(seconds, (int) readVarLong(in), ZoneOffset.UTC);
+            default:
+                throw new IllegalStateException(kind.name());
+        }
+    }
+
+    // zigzag变长整数 每个字节7位 小的数(包括负数)占的字节少
+    private static long readVarLong(ByteBuffer in) {
+        long raw = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            raw |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    private static String readString(ByteBuffer in) {
+        // 长度是从值里读出来的 坏掉的值可能声称有几个G 先和剩下的字节数比一下再分配
+        long len = readVarLong(in);
+        if (len < 0 || len > in.remaining()) {
+            throw new IllegalArgumentException("字符串长度不对 len=" + len + " remaining=" + in.remaining());
+        }
+        byte[] bytes = new byte[(int) len];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(128);
+        }
+
+        void writeInt(int v) {
+            write(v >>> 24);
+            write(v >>> 16);
+            write(v >>> 8);
+            write(v);
+        }
+
+        void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeVarLong(long v) {
+            long raw = (v << 1) ^ (v >> 63);
+            while ((raw & ~0x7FL) != 0) {
+                write((int) ((raw & 0x7F) | 0x80));
+                raw >>>= 7;
+            }
+            write((int) raw);
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 本地内存里面的布隆过滤器(判断一个id是不是一定不存在 不访问redis也不访问数据库)
+ * 说不存在就一定不存在 说存在有fpp的概率误判 不支持删除(删掉的数据等定时重建的时候去掉)
+ * 用murmur128算出两个哈希值 第i个位置是 h1 + i * h2
+ */
+public class BloomFilter {
+
+    // 位数组
+    private final AtomicLongArray bits;
+
+    // 一共多少位
+    private final long bitSize;
+
+    // 每个元素算几个位置
+    private final int hashCount;
+
+    /**
+     * @param expectedInsertions 预计放多少个元素
+     * @param fpp                允许的误判率
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        long n = Math.max(expectedInsertions, 1);
+        // m = -n * ln(p) / (ln2)^2  k = m / n * ln2
+        long m = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((Math.max(m, 64) + 63) / 64));
+        this.bitSize = bits.length() * 64L;
+        this.hashCount = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(String value) {
+        long[] hash = MurmurHash.hash128(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = index(hash, i);
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            while (true) {
+                long old = bits.get(word);
+                if ((old & mask) != 0 || bits.compareAndSet(word, old, old | mask)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(String value) {
+        long[] hash = MurmurHash.hash128(value);
+        for (int i = 0; i < hashCount; i++) {
+            long index = index(hash, i);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(long[] hash, int i) {
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitSize;
+    }
+}
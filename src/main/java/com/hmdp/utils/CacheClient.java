@@ -1,25 +1,66 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.lang.UUID;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
+/**
+ * 缓存工具类
+ * 缓存值的格式见CacheSerializer(默认二进制编码 大的压缩 逻辑过期时间放在头部) 以前写的json也能读
+ * 可以打开本地缓存(一级缓存) 放在redis前面 热点数据直接在内存里面返回 不用访问redis也不用再解析json
+ * 本地缓存按数量淘汰(LRU) 有效期比redis的短 修改或者删除缓存的时候通过pub/sub通知所有节点删掉自己的本地缓存
+ * <p>
+ * 注册了布隆过滤器的数据(registerFilter) 查询之前先判断id是否一定不存在 一定不存在的直接返回null(不访问缓存和数据库)
+ * 过滤器启动的时候从数据库建好 新增数据的时候通过pub/sub通知所有节点加进去 定时重建(去掉删除了的数据)
+ * pub/sub会丢消息 也比新增接口返回得晚 所以新增的id同时记在redis里面(CACHE_FILTER_ADDED_KEY)
+ * 本地过滤器说不存在的时候再查一下最近新增的id 在里面的当作存在(查一次zset 比查缓存再查数据库便宜)
+ * 所以一定不存在的id单个查询还是要访问一次redis(一次zscore) 批量查询的时候和mget放在同一个pipeline里面 不会多一次往返
+ */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
     /**
      * TODO 工具类中的方法不用static修饰的原因，是因为方法中使用的stringRedisTemplate是通过ioc注入进来的
      * TODO ioc通过new的方式创建Bean，new出来的对象实在堆里面，static修饰的对象优先于对象存在
@@ -28,6 +69,227 @@ public class CacheClient {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 缓存值的编码(二进制/json + 压缩 + 逻辑过期时间的头部)
+    @Resource
+    private CacheSerializer cacheSerializer;
+
+    // 是否打开本地缓存
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localEnabled;
+
+    // 本地缓存最多放多少个key
+    @Value("${hmdp.cache.local.size:10000}")
+    private int localSize;
+
+    // 本地缓存的有效期(毫秒) 要比redis的短 收不到删除通知的时候最多旧这么久
+    @Value("${hmdp.cache.local.ttl:5000}")
+    private long localTtl;
+
+    // 本地缓存里面表示数据库里面没有这个数据(对应redis里面的空字符串)
+    private static final Object NULL_VALUE = new Object();
+
+    // 本地缓存 key -> 反序列化好的对象
+    private LRUCache<String, Object> localCache;
+
+    // 收到过多少次删除通知 从redis读数据之前记一下 读回来之后变了就不放进本地缓存(读到的可能是旧的)
+    private final AtomicLong invalidations = new AtomicLong();
+
+    // 没抢到重建锁的请求最多等多久(毫秒) 等不到就自己查数据库(不能一直占着tomcat的线程)
+    @Value("${hmdp.cache.lock.wait:1000}")
+    private long lockWait;
+
+    // 释放锁的脚本(锁里面是自己的标识才删)
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unLock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    // 正在重建的key -> 重建的结果(同一个节点同一个key只有一个线程去抢锁查数据库 其他线程等这个结果)
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    // 是否使用布隆过滤器
+    @Value("${hmdp.cache.filter.enabled:false}")
+    private boolean filterEnabled;
+
+    // 布隆过滤器多久重建一次(毫秒) 最近新增的id保留两倍这么久
+    @Value("${hmdp.cache.filter.rebuild-interval:3600000}")
+    private long filterRebuildInterval;
+
+    // 布隆过滤器的误判率
+    @Value("${hmdp.cache.filter.fpp:0.01}")
+    private double filterFpp;
+
+    // key的前缀 -> 这种数据的布隆过滤器
+    private final Map<String, IdFilter> filters = new ConcurrentHashMap<>();
+
+    private static class IdFilter {
+        // 从数据库查出所有的id
+        private final Supplier<? extends Collection<?>> idLoader;
+        // 正在用的过滤器(还没建好是null 这时候都当作可能存在)
+        private volatile BloomFilter current;
+        // 正在用的过滤器是什么时候开始从数据库查id的(之后新增的id不一定在里面 要查最近新增的id)
+        private volatile long builtAt;
+        // 重建期间新增的id(重建好了再加到新的过滤器里面)
+        private Set<String> pending;
+
+        IdFilter(Supplier<? extends Collection<?>> idLoader) {
+            this.idLoader = idLoader;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        if (localEnabled) {
+            localCache = CacheUtil.newLRUCache(localSize, localTtl);
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        }
+        if (filterEnabled) {
+            redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(CACHE_FILTER_CHANNEL));
+        }
+    }
+
+    /**
+     * 给一种数据注册布隆过滤器(马上从数据库建好)
+     *
+     * @param keyPrefix key的前缀 查询的时候用同一个前缀
+     * @param idLoader  从数据库查出所有的id
+     */
+    public void registerFilter(String keyPrefix, Supplier<? extends Collection<?>> idLoader) {
+        if (!filterEnabled) {
+            return;
+        }
+        IdFilter filter = new IdFilter(idLoader);
+        filters.put(keyPrefix, filter);
+        rebuildFilter(keyPrefix, filter);
+    }
+
+    /**
+     * 新增数据以后调用 把id加到所有节点的布隆过滤器里面
+     *
+     * @param keyPrefix key的前缀
+     * @param id        新增数据的id
+     */
+    public void addToFilter(String keyPrefix, Object id) {
+        IdFilter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        // 先记到redis里面(别的节点没收到通知也能查到) 再通知
+        stringRedisTemplate.opsForZSet().add(CACHE_FILTER_ADDED_KEY + keyPrefix, id.toString(), System.currentTimeMillis());
+        putFilter(filter, id.toString());
+        stringRedisTemplate.convertAndSend(CACHE_FILTER_CHANNEL, keyPrefix + id);
+    }
+
+    /**
+     * 定时重建所有的布隆过滤器(删掉了的数据从过滤器里面去掉 数据变多了也能按新的数量重新分配大小)
+     */
+    @Scheduled(initialDelayString = "${hmdp.cache.filter.rebuild-interval:3600000}",
+            fixedDelayString = "${hmdp.cache.filter.rebuild-interval:3600000}")
+    public void rebuildFilters() {
+        filters.forEach(this::rebuildFilter);
+    }
+
+    private void rebuildFilter(String keyPrefix, IdFilter filter) {
+        synchronized (filter) {
+            filter.pending = new HashSet<>();
+        }
+        try {
+            // 1.查出所有的id 按数量的两倍分配大小(给新增的留位置)
+            long start = System.currentTimeMillis();
+            Collection<?> ids = filter.idLoader.get();
+            BloomFilter bloomFilter = new BloomFilter(Math.max(ids.size() * 2L, 1024L), filterFpp);
+            ids.forEach(id -> bloomFilter.put(id.toString()));
+            // 2.加上重建期间新增的 换成新的过滤器
+            synchronized (filter) {
+                filter.pending.forEach(bloomFilter::put);
+                filter.current = bloomFilter;
+                filter.builtAt = start;
+            }
+            // 3.太早新增的id已经在所有节点的过滤器里面了(重建过) 从redis里面删掉
+            stringRedisTemplate.opsForZSet().removeRangeByScore(
+                    CACHE_FILTER_ADDED_KEY + keyPrefix, 0, start - filterRetention());
+            log.info("布隆过滤器已重建 keyPrefix={} size={}", keyPrefix, ids.size());
+        } catch (Exception e) {
+            // 重建失败接着用旧的
+            log.error("布隆过滤器重建失败 keyPrefix={}", keyPrefix, e);
+        } finally {
+            synchronized (filter) {
+                filter.pending = null;
+            }
+        }
+    }
+
+    private void putFilter(IdFilter filter, String id) {
+        synchronized (filter) {
+            if (filter.current != null) {
+                filter.current.put(id);
+            }
+            if (filter.pending != null) {
+                filter.pending.add(id);
+            }
+        }
+    }
+
+    // 最近新增的id在redis里面保留多久(两个重建周期 再留一分钟给各个节点的时钟误差)
+    private long filterRetention() {
+        return filterRebuildInterval * 2 + 60000;
+    }
+
+    /**
+     * 只看本地的过滤器
+     *
+     * @return true:可能存在(没有注册过滤器的也是) false:一定不存在 null:本地说不存在 还要查redis里面最近新增的id
+     */
+    private Boolean checkLocalFilter(String keyPrefix, String value) {
+        IdFilter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return true;
+        }
+        BloomFilter current = filter.current;
+        if (current == null || current.mightContain(value)) {
+            return true;
+        }
+        // 过滤器太久没重建成功了(比redis里面保留的还早) 中间新增的查不全 当作可能存在
+        if (System.currentTimeMillis() - filter.builtAt > filterRebuildInterval + 60000) {
+            return true;
+        }
+        return null;
+    }
+
+    /**
+     * 查redis里面最近新增的id有没有这个 有的话补到本地过滤器里面(通知丢了或者还没到) 下次不用再查redis
+     */
+    private boolean confirmRecent(String keyPrefix, String value, Double score) {
+        if (score == null) {
+            return false;
+        }
+        IdFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            putFilter(filter, value);
+        }
+        return true;
+    }
+
+    /**
+     * 这个id的数据可能存在(没有注册过滤器的都当作可能存在)
+     * 本地过滤器说不存在的时候 还要查一次最近新增的id(一次zscore 比查缓存再查数据库便宜 但不是完全不访问redis)
+     */
+    public boolean mightExist(String keyPrefix, Object id) {
+        String value = id.toString();
+        Boolean local = checkLocalFilter(keyPrefix, value);
+        if (local != null) {
+            return local;
+        }
+        return confirmRecent(keyPrefix, value,
+                stringRedisTemplate.opsForZSet().score(CACHE_FILTER_ADDED_KEY + keyPrefix, value));
+    }
+
     /**
      * 这个就是防止缓存穿透(这个就是防止穿透的)
      *
@@ -42,38 +304,329 @@ public class CacheClient {
      * @return
      */
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        // 布隆过滤器说一定不存在 直接返回(不访问redis和数据库 也不用写空值)
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        long version = invalidations.get();
+
+        // 先查缓存(本地缓存 -> redis)
+        Object cached = getCached(key, type, version);
+        if (cached != null) {
+            // 缓存的是空值 就表示你要查询的是错误的就直接返回(防止缓存穿透)
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+
+        // 查询数据库(这个地方返回的也是R 但是我们不知道数据库是谁 所以我们要写函数式接口)
+        R r = dbFallback.apply(id);
+        // 存入redis里面去 数据库里面没有的写空值
+//        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        writeBack(key, r, time, unit, version);
+        return r;
+    }
+
+    /**
+     * 互斥锁解决缓存击穿(同时也防止缓存穿透)
+     * 1.同一个节点上同一个key同时没命中的请求 只有第一个去抢分布式锁 其他的等它重建完直接拿结果(不再各自去轮询redis)
+     * 2.抢到锁的再查一次缓存(别的节点可能刚重建好) 还没有才查数据库写回缓存
+     * 3.没抢到锁说明别的节点在重建 等一会(越等越久)再查缓存 不再递归
+     *
+     * @param keyPrefix  是key的前缀
+     * @param id         是去查数据库的
+     * @param type       表示去redis里面查到的数据然后转为java对象
+     * @param dbFallback 这个表示我们的查询数据库的那个方法
+     * @param time       表示我们商品在redis里面存放的时间
+     * @param unit       表示单位
+     * @param <R>        这个就是我们的返回值
+     * @param <ID>       这个就是我们id的类型
+     * @return
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit unit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        long version = invalidations.get();
+
+        // 1.先查缓存
+        Object cached = getCached(key, type, version);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+
+        // 2.已经有线程在重建了 等它的结果
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            Object r = awaitRebuild(leader, id, dbFallback);
+            return r == NULL_VALUE || r == null ? null : type.cast(r);
+        }
+
+        // 3.自己去重建 重建完通知等着的线程
+        try {
+            Object r = rebuildWithLock(key, id, type, dbFallback, time, unit, version);
+            flight.complete(r);
+            return r == NULL_VALUE ? null : type.cast(r);
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * 批量查询(防止缓存穿透) N个id只访问一次redis 没命中的只查一次数据库
+     * 1.布隆过滤器说一定不存在的直接是null 再查本地缓存
+     * 2.剩下的一次mget 解码命中的(本地过滤器说不存在的 查最近新增的id的zscore和mget放在同一个pipeline里面)
+     * 3.没命中的一次查出来 用一个pipeline写回redis(数据库里面没有的写空值)
+     *
+     * @param keyPrefix  是key的前缀
+     * @param ids        要查的id(可以重复)
+     * @param type       表示去redis里面查到的数据然后转为java对象
+     * @param dbFallback 按一批id查数据库(比如listByIds) 返回的顺序无所谓
+     * @param idGetter   从查出来的对象上取id(比如Shop::getId)
+     * @param time       表示我们商品在redis里面存放的时间
+     * @param unit       表示单位
+     * @param <R>        这个就是我们的返回值
+     * @param <ID>       这个就是我们id的类型
+     * @return 和ids一一对应(顺序一样) 不存在的是null
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix, List<ID> ids, Class<R> type,
+                                      Function<Collection<ID>, ? extends Collection<R>> dbFallback,
+                                      Function<R, ID> idGetter, Long time, TimeUnit unit) {
+        long version = invalidations.get();
+        // id -> 查到的结果(NULL_VALUE表示不存在)
+        Map<ID, Object> found = new HashMap<>(ids.size() * 2);
+        // 1.布隆过滤器和本地缓存
+        List<ID> remote = new ArrayList<>();
+        // 本地过滤器说不存在的(放在remote的最后面 一起mget 再看最近新增的id里面有没有)
+        List<ID> unsure = new ArrayList<>();
+        Set<ID> seen = new HashSet<>(ids.size() * 2);
+        for (ID id : ids) {
+            if (!seen.add(id)) {
+                continue;
+            }
+            Boolean exists = checkLocalFilter(keyPrefix, id.toString());
+            if (exists == null) {
+                unsure.add(id);
+                continue;
+            }
+            if (!exists) {
+                found.put(id, NULL_VALUE);
+                continue;
+            }
+            Object local = localCache == null ? null : localCache.get(keyPrefix + id, false);
+            if (local != null) {
+                found.put(id, local);
+            } else {
+                remote.add(id);
+            }
+        }
+        int confirmed = remote.size();
+        remote.addAll(unsure);
+
+        // 2.剩下的一次mget(和最近新增的id的zscore放在一个pipeline里面)
+        List<ID> misses = new ArrayList<>();
+        if (!remote.isEmpty()) {
+            byte[][] keys = new byte[remote.size()][];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = (keyPrefix + remote.get(i)).getBytes(StandardCharsets.UTF_8);
+            }
+            byte[] addedKey = (CACHE_FILTER_ADDED_KEY + keyPrefix).getBytes(StandardCharsets.UTF_8);
+            // 不传序列化器 拿到的是原始的byte[](缓存值可能是二进制的)
+            List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+                c.mGet(keys);
+                for (ID id : unsure) {
+                    c.zScore(addedKey, id.toString().getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            }, null);
+            @SuppressWarnings("unchecked")
+            List<byte[]> values = (List<byte[]>) replies.get(0);
+            for (int i = 0; i < remote.size(); i++) {
+                ID id = remote.get(i);
+                if (i >= confirmed && !confirmRecent(keyPrefix, id.toString(), (Double) replies.get(1 + i - confirmed))) {
+                    // 最近也没有新增过 一定不存在
+                    found.put(id, NULL_VALUE);
+                    continue;
+                }
+                byte[] bytes = values == null ? null : values.get(i);
+                // 空字符串是空值 解不出来的当作没命中
+                Object r = bytes == null ? null : bytes.length == 0 ? NULL_VALUE : cacheSerializer.deserialize(bytes, type);
+                if (r == null) {
+                    misses.add(id);
+                } else {
+                    found.put(id, r);
+                    putLocal(keyPrefix + id, r, version);
+                }
+            }
+        }
+
+        // 3.没命中的一次查数据库 一个pipeline写回redis
+        if (!misses.isEmpty()) {
+            Map<ID, R> loaded = new HashMap<>(misses.size() * 2);
+            for (R r : dbFallback.apply(misses)) {
+                loaded.put(idGetter.apply(r), r);
+            }
+            Map<byte[], byte[]> writes = new LinkedHashMap<>(misses.size() * 2);
+            for (ID id : misses) {
+                R r = loaded.get(id);
+                found.put(id, r == null ? NULL_VALUE : r);
+                writes.put((keyPrefix + id).getBytes(StandardCharsets.UTF_8),
+                        r == null ? new byte[0] : cacheSerializer.serialize(r, 0));
+            }
+            Expiration ttl = Expiration.from(time, unit);
+            Expiration nullTtl = Expiration.from(CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) c -> {
+                writes.forEach((key, value) -> c.set(key, value, value.length == 0 ? nullTtl : ttl,
+                        RedisStringCommands.SetOption.upsert()));
+                return null;
+            });
+            for (ID id : misses) {
+                putLocal(keyPrefix + id, found.get(id), version);
+            }
+        }
+
+        // 4.按传进来的顺序返回
+        List<R> result = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            Object r = found.get(id);
+            result.add(r == null || r == NULL_VALUE ? null : type.cast(r));
+        }
+        return result;
+    }
+
+    /**
+     * 抢分布式锁重建缓存 返回NULL_VALUE表示数据库里面没有
+     */
+    private <R, ID> Object rebuildWithLock(String key, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                           Long time, TimeUnit unit, long version) {
+        String lockKey = CACHE_LOCK_KEY + key;
+        // 最多等lockWait那么久 还没等到就直接查数据库
+        long deadline = System.currentTimeMillis() + lockWait;
+        long backoff = 10;
+        while (true) {
+            String token = tryLock(lockKey);
+            if (token != null) {
+                try {
+                    // 拿到锁再查一次缓存 别的节点可能刚重建好
+                    Object cached = getCached(key, type, version);
+                    if (cached != null) {
+                        return cached;
+                    }
+                    R r = dbFallback.apply(id);
+                    writeBack(key, r, time, unit, version);
+                    return r == null ? NULL_VALUE : r;
+                } finally {
+                    unlock(lockKey, token);
+                }
+            }
+            // 别的节点在重建 等一会再看缓存
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            backoff = Math.min(backoff * 2, 200);
+            Object cached = getCached(key, type, version);
+            if (cached != null) {
+                return cached;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                log.warn("等待缓存重建超时 直接查询数据库 key={}", key);
+                R r = dbFallback.apply(id);
+                return r == null ? NULL_VALUE : r;
+            }
+        }
+    }
+
+    /**
+     * 等同一个节点上正在重建的线程的结果
+     */
+    private <ID> Object awaitRebuild(CompletableFuture<Object> leader, ID id, Function<ID, ?> dbFallback) {
+        try {
+            // 领头的线程最多等lockWait 再查一次数据库 多给它一倍的时间
+            return leader.get(2 * lockWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (TimeoutException e) {
+            log.warn("等待缓存重建超时 直接查询数据库 id={}", id);
+            return dbFallback.apply(id);
+        }
+    }
+
+    /**
+     * 查缓存(先查本地缓存 再查redis)
+     *
+     * @return null表示没有缓存 NULL_VALUE表示缓存的是空值(数据库里面没有)
+     */
+    private Object getCached(String key, Class<?> type, long version) {
+        // 先查本地缓存(命中了就不用访问redis)
+        if (localCache != null) {
+            Object local = localCache.get(key, false);
+            if (local != null) {
+                return local;
+            }
+        }
 
         // 取redis中的缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
         // 进了这个判断就是有值的情况了
-        if (StrUtil.isNotBlank(json)) {  //isNotBlank 不为空就是true
-            R r = JSONUtil.toBean(json, type);
+        if (bytes != null && bytes.length > 0) {
+            // 解不出来(类的字段改过了)当作没有缓存 重新查数据库覆盖掉
+            Object r = cacheSerializer.deserialize(bytes, type);
+            if (r != null) {
+                putLocal(key, r, version);
+            }
             return r;
-
         }
 
         // 如果进了这个判断就是空字符串
-        if (json != null) {
-            // 返回一个错误信息
-            // 这个就表示你要查询的是错误的就直接返回空字符串(防止缓存穿透)
-            return null;
+        if (bytes != null) {
+            putLocal(key, NULL_VALUE, version);
+            return NULL_VALUE;
         }
+        return null;
+    }
 
-        // 查询数据库(这个地方返回的也是R 但是我们不知道数据库是谁 所以我们要写函数式接口)
-        R r = dbFallback.apply(id);
+    /**
+     * 数据库查出来的写回缓存(数据库里面读出来的 不用通知其他节点)
+     * 查不到的写空字符串 防止缓存穿透
+     */
+    private void writeBack(String key, Object r, Long time, TimeUnit unit, long version) {
         if (r == null) {
             // 将空值写入redis
             stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            // 返回错误信息
-            return null;
+            putLocal(key, NULL_VALUE, version);
+            return;
         }
+        setBytes(key, cacheSerializer.serialize(r, 0), time, unit);
+        putLocal(key, r, version);
+    }
 
-        // 存入redis里面去
-//        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(r), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        this.set(key, r, time, unit);
-        return r;
+    private byte[] getBytes(String key) {
+        return stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 直接写字节(StringRedisTemplate只能写字符串) time为null表示不过期
+     */
+    private void setBytes(String key, byte[] value, Long time, TimeUnit unit) {
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> time == null
+                ? connection.set(key.getBytes(StandardCharsets.UTF_8), value)
+                : connection.set(key.getBytes(StandardCharsets.UTF_8), value,
+                Expiration.from(time, unit), RedisStringCommands.SetOption.upsert()));
     }
 
 
@@ -102,34 +655,39 @@ public class CacheClient {
         String key = keyPrefix + id;
 
         // 取redis中的缓存
-        String jsonStr = stringRedisTemplate.opsForValue().get(key);
+        byte[] bytes = getBytes(key);
 
         // 进了这个判断就是没有命中
-        if (StrUtil.isBlank(jsonStr)) {  //isNotBlank 不为空就是true
+        if (bytes == null || bytes.length == 0) {
             return null;
         }
 
-        // 命中需要json反序列化
-        RedisData redisData = JSONUtil.toBean(jsonStr, RedisData.class);
-        // 获取我们的数据
-        // 得到我们的jsonObject
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
-
-        // 获取过期时间
-        LocalDateTime expireTime = redisData.getExpireTime();
+        R r = null;
+        long expireAt = 0;
+        if (cacheSerializer.isFramed(bytes)) {
+            // 过期时间在头部 数据只解码一次
+            expireAt = cacheSerializer.expireAt(bytes);
+            r = cacheSerializer.deserialize(bytes, type);
+        } else {
+            // 以前写的RedisData的json(hmdp.cache.codec.framed没打开的时候也写这个)
+            RedisData redisData = cacheSerializer.legacyRedisData(bytes);
+            if (redisData != null && redisData.getData() instanceof JSONObject) {
+                r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
+                expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+        }
 
-        // 再来判断是否过期(过期时间是不是在当前时间之后喃)
-        if (expireTime.isAfter(LocalDateTime.now())) {
+        // 再来判断是否过期(过期时间是不是在当前时间之后喃) 解不出来的也当作过期了 马上重建
+        if (r != null && expireAt > System.currentTimeMillis()) {
             // 没有过期直接返回
             return r;
         }
         // 如果已经过期 我们就要进行缓存重建
         String lockKey = LOCK_SHOP_KEY + id;
         // 获取互斥锁
-        boolean isLock = tryLock(lockKey);
+        String token = tryLock(lockKey);
         // 判断获取锁是否成功
-        if (isLock) {
+        if (token != null) {
             // TODO 成功 就开启一个线程(实现缓存重建)
             // 提交任务
             CACHE_REBUILD_EXECUTOR.submit(() -> {
@@ -144,7 +702,7 @@ public class CacheClient {
                     throw new RuntimeException(e);
                 } finally {
                     // 重建缓存后就要释放锁
-                    unlock(lockKey);
+                    unlock(lockKey, token);
                 }
 
             });
@@ -158,27 +716,30 @@ public class CacheClient {
 
     /**
      * 这个是获取锁
+     * 锁里面写一个随机的标识(释放锁的可能是别的线程 比如逻辑过期的重建线程 所以不用线程id)
      *
      * @param key
-     * @return
+     * @return 加锁成功返回标识(释放的时候要用) 失败返回null
      */
-    private boolean tryLock(String key) {
+    private String tryLock(String key) {
         // 相当于setnx 就是如果有的话你就设置不成功  LOCK_SHOP_TTL 10秒
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        String token = UUID.randomUUID().toString(true);
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, token, LOCK_SHOP_TTL, TimeUnit.SECONDS);
 
         // 不能直接返回 因为有拆箱的时候可能会发生风险
-        return BooleanUtil.isTrue(flag);
+        return Boolean.TRUE.equals(flag) ? token : null;
 
     }
 
     /**
      * 释放锁
+     * 查数据库超过了锁的有效期的话 锁可能已经过期被别的节点拿走了 只删自己的(比较标识再删 在lua脚本里面保证原子)
      *
      * @param key
+     * @param token 加锁的时候返回的标识
      */
-    private void unlock(String key) {
-        // 将我们的setnx的那个键给删除 就相当于其他的线程就可以获取我们的数据了
-        stringRedisTemplate.delete(key);
+    private void unlock(String key, String token) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), token);
     }
 
 
@@ -191,7 +752,57 @@ public class CacheClient {
      * @param unit  表示我们的单位
      */
     public void set(String key, Object value, Long time, TimeUnit unit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, unit);
+        setBytes(key, cacheSerializer.serialize(value, 0), time, unit);
+        // 值变了 所有节点的本地缓存都要删掉
+        publishInvalidation(key);
+    }
+
+    /**
+     * 删除缓存(修改数据库以后调用) 同时通知所有节点删掉本地缓存
+     *
+     * @param key 表示我们存入redis里面的key
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        publishInvalidation(key);
+    }
+
+    /**
+     * 收到删除通知(或者布隆过滤器的新增通知) 消息内容就是key
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_FILTER_CHANNEL.equals(new String(message.getChannel(), StandardCharsets.UTF_8))) {
+            filters.forEach((keyPrefix, filter) -> {
+                if (key.startsWith(keyPrefix)) {
+                    putFilter(filter, key.substring(keyPrefix.length()));
+                }
+            });
+            return;
+        }
+        evictLocal(key);
+    }
+
+    private void publishInvalidation(String key) {
+        // 这个节点没开本地缓存 别的节点可能开了 所以不管自己开没开都要广播
+        // 自己先删 不用等广播回来(没开的话evictLocal什么都不做)
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private void evictLocal(String key) {
+        if (localCache != null) {
+            invalidations.incrementAndGet();
+            localCache.remove(key);
+        }
+    }
+
+    private void putLocal(String key, Object value, long version) {
+        // 读redis的过程中收到过删除通知 读到的可能是旧值 这次就不放了
+        if (localCache != null && invalidations.get() == version) {
+            localCache.put(key, value);
+        }
     }
 
 
@@ -205,12 +816,8 @@ public class CacheClient {
      * @param unit  表示我们的单位
      */
     public void setWithLogiclExpire(String key, Object value, Long time, TimeUnit unit) {
-        // 我们定义了一个类 redisdata里面就有过期的字段
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        // 在当前的基础上再加上多少秒 我们这里就是统一转为秒来处理的  unit.toSeconds(time)
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        // 过期时间写在头部 读的时候不用解码数据就能判断过没过期
+        long expireAt = System.currentTimeMillis() + unit.toMillis(time);
+        setBytes(key, cacheSerializer.serialize(value, expireAt), null, null);
     }
 }
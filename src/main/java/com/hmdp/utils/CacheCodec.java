@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编码方式(CacheClient用)
+ * 实现这个接口再加上@Component就能用 hmdp.cache.codec 配置写入的时候用哪个
+ * 读取的时候按缓存值头部记录的编码方式解码 所以切换编码方式以后旧的缓存也能读
+ */
+public interface CacheCodec {
+
+    /**
+     * 编码方式的编号(写在缓存值的头部 0~15 不能重复)
+     */
+    int id();
+
+    /**
+     * 编码方式的名字(配置里面用)
+     */
+    String name();
+
+    /**
+     * 这个类型能不能用这种方式编码 不能的话CacheClient会退回到json
+     */
+    boolean supports(Class<?> type);
+
+    byte[] encode(Object value);
+
+    /**
+     * @return 解不出来(比如类的字段变了)返回null 当作没有缓存
+     */
+    <T> T decode(byte[] bytes, Class<T> type);
+}
@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.ZipUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * 缓存值在redis里面的格式(CacheClient用)
+ * [1字节 标记0xB7][1字节 低4位编码方式 0x10压缩了][8字节 逻辑过期时间(毫秒时间戳 0表示没有)][编码后的数据]
+ * 1.逻辑过期时间放在固定的头部 判断过没过期只要读8个字节 不用解码整个对象
+ * 2.编码后超过阈值的用zlib压缩(压缩了反而更大的不压)
+ * 3.以前写的json没有这个头部(json不会以0xB7开头) 读的时候按json解码 等过期了自然就换成新的格式
+ * 4.旧版本的节点读不了带头部的值 所以默认还是写以前的json(framed=false)
+ *   滚动升级分两步: 先所有节点都换成新版本(两种格式都能读) 再把 hmdp.cache.codec.framed 打开
+ */
+@Slf4j
+@Component
+public class CacheSerializer {
+
+    private static final byte MAGIC = (byte) 0xB7;
+
+    private static final int COMPRESSED = 0x10;
+
+    private static final int HEADER_SIZE = 10;
+
+    @Resource
+    private List<CacheCodec> codecs;
+
+    @Resource
+    private JsonCacheCodec jsonCacheCodec;
+
+    // 写缓存用哪种编码方式(binary/json) 类型不支持的退回json
+    @Value("${hmdp.cache.codec.type:binary}")
+    private String codecType;
+
+    // 是否写带头部的新格式 false的时候写以前的json(旧版本的节点也能读)
+    @Value("${hmdp.cache.codec.framed:false}")
+    private boolean framed;
+
+    // 编码后超过多少字节就压缩 0表示不压缩
+    @Value("${hmdp.cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    // 编号 -> 编码方式(读的时候按头部的编号找)
+    private final CacheCodec[] byId = new CacheCodec[16];
+
+    private CacheCodec writer;
+
+    @PostConstruct
+    private void init() {
+        for (CacheCodec codec : codecs) {
+            // 编号只占头部字节的低4位
+            if (codec.id() < 0 || codec.id() >= byId.length) {
+                throw new IllegalStateException("缓存编码方式的编号只能是0~" + (byId.length - 1)
+                        + " name=" + codec.name() + " id=" + codec.id());
+            }
+            if (byId[codec.id()] != null) {
+                throw new IllegalStateException("缓存编码方式的编号重复了 id=" + codec.id());
+            }
+            byId[codec.id()] = codec;
+            if (codec.name().equals(codecType)) {
+                writer = codec;
+            }
+        }
+        if (writer == null) {
+            throw new IllegalStateException("没有这种缓存编码方式 hmdp.cache.codec.type=" + codecType);
+        }
+    }
+
+    /**
+     * @param value    要缓存的对象(不能是null 空值还是写空字符串)
+     * @param expireAt 逻辑过期时间(毫秒时间戳) 0表示没有
+     */
+    public byte[] serialize(Object value, long expireAt) {
+        if (!framed) {
+            return legacySerialize(value, expireAt);
+        }
+        CacheCodec codec = writer.supports(value.getClass()) ? writer : jsonCacheCodec;
+        byte[] payload = codec.encode(value);
+        int flags = codec.id();
+        if (compressThreshold > 0 && payload.length > compressThreshold) {
+            byte[] compressed = ZipUtil.zlib(payload, Deflater.BEST_SPEED);
+            if (compressed.length < payload.length) {
+                payload = compressed;
+                flags |= COMPRESSED;
+            }
+        }
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+                .put(MAGIC).put((byte) flags).putLong(expireAt).put(payload).array();
+    }
+
+    /**
+     * 以前的格式 没有逻辑过期的直接写json 有的包一层RedisData
+     */
+    private byte[] legacySerialize(Object value, long expireAt) {
+        if (expireAt <= 0) {
+            return jsonCacheCodec.encode(value);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return jsonCacheCodec.encode(redisData);
+    }
+
+    /**
+     * 是不是新格式(有头部) 以前写的json返回false
+     */
+    public boolean isFramed(byte[] bytes) {
+        return bytes.length >= HEADER_SIZE && bytes[0] == MAGIC;
+    }
+
+    /**
+     * 只读头部的逻辑过期时间 0表示没有
+     */
+    public long expireAt(byte[] bytes) {
+        return isFramed(bytes) ? ByteBuffer.wrap(bytes, 2, 8).getLong() : 0;
+    }
+
+    /**
+     * @return 解不出来返回null 当作没有缓存
+     */
+    public <T> T deserialize(byte[] bytes, Class<T> type) {
+        // 坏的缓存值(解压失败 json格式不对...)都当作没有缓存 不能让查询报错
+        try {
+            if (!isFramed(bytes)) {
+                return jsonCacheCodec.decode(bytes, type);
+            }
+            int flags = bytes[1] & 0xFF;
+            CacheCodec codec = byId[flags & 0x0F];
+            if (codec == null) {
+                log.warn("不认识的缓存编码方式 id={}", flags & 0x0F);
+                return null;
+            }
+            byte[] payload = new byte[bytes.length - HEADER_SIZE];
+            System.arraycopy(bytes, HEADER_SIZE, payload, 0, payload.length);
+            if ((flags & COMPRESSED) != 0) {
+                payload = ZipUtil.unZlib(payload);
+            }
+            return codec.decode(payload, type);
+        } catch (RuntimeException e) {
+            log.warn("缓存值解码失败 type={}", type.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 以前写的逻辑过期缓存(RedisData的json)
+     *
+     * @return 解不出来返回null 当作已经过期
+     */
+    public RedisData legacyRedisData(byte[] bytes) {
+        try {
+            RedisData redisData = jsonCacheCodec.decode(bytes, RedisData.class);
+            return redisData == null || redisData.getExpireTime() == null ? null : redisData;
+        } catch (RuntimeException e) {
+            log.warn("逻辑过期缓存解码失败", e);
+            return null;
+        }
+    }
+}
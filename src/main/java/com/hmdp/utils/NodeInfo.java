@@ -0,0 +1,18 @@
+package com.hmdp.utils;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * 当前节点(jvm进程)的标识
+ * 多个节点一起消费同一个stream的时候 消费者的名字不能重复
+ */
+public class NodeInfo {
+
+    /**
+     * 节点id 格式是 pid@hostname 同一台机器上的不同进程也不会重复
+     */
+    public static final String NODE_ID = ManagementFactory.getRuntimeMXBean().getName();
+
+    private NodeInfo() {
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.VoucherOrder;
+import io.lettuce.core.api.StatefulRedisConnection;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 异步下单结果的通知
+ * 秒杀脚本下单的时候写入 seckill:order:result:订单id(值是 用户id:状态:优惠券id:数量 状态是处理中)
+ * 消费者落库以后把状态改成成功或者失败 然后通过pub/sub广播
+ * 用户长轮询查结果的时候先挂起请求(不占tomcat线程) 收到广播或者查到结果就返回 超时了返回处理中
+ */
+@Slf4j
+@Component
+public class OrderResultNotifier implements MessageListener {
+
+    /**
+     * 处理中
+     */
+    public static final int PROCESSING = 0;
+    /**
+     * 下单成功
+     */
+    public static final int SUCCESS = 1;
+    /**
+     * 下单失败
+     */
+    public static final int FAILED = 2;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private StatefulRedisConnection<String, String> redisAsyncConnection;
+
+    // 长轮询最多等多久(毫秒)
+    @Value("${hmdp.seckill.result.poll-timeout:10000}")
+    private long pollTimeout;
+
+    // 订单id -> 当前节点上在等这个订单结果的请求
+    private final Map<Long, List<Waiter>> waiters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_ORDER_RESULT_CHANNEL));
+    }
+
+    /**
+     * 写入一批订单的结果 一次pipeline写完 再广播一条消息
+     *
+     * @param voucherOrders 这一批订单
+     * @param succeeded     下单成功的订单id
+     */
+    public void publish(List<VoucherOrder> voucherOrders, Set<Long> succeeded) {
+        // 广播的消息格式 订单id:用户id:状态,订单id:用户id:状态...
+        StringBuilder message = new StringBuilder();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                int status = succeeded.contains(voucherOrder.getId()) ? SUCCESS : FAILED;
+                String value = voucherOrder.getUserId() + ":" + status;
+                // 下单记录(秒杀脚本写进去的) 只改状态 优惠券id和数量原样写回去
+                connection.stringCommands().set(
+                        bytes(SECKILL_ORDER_RESULT_KEY + voucherOrder.getId()),
+                        bytes(value + ":" + voucherOrder.getVoucherId() + ":" + voucherOrder.getQuantity()),
+                        Expiration.from(SECKILL_ORDER_RESULT_TTL, TimeUnit.MINUTES),
+                        RedisStringCommands.SetOption.upsert());
+                if (message.length() > 0) {
+                    message.append(',');
+                }
+                message.append(voucherOrder.getId()).append(':').append(value);
+            }
+            connection.publish(bytes(SECKILL_ORDER_RESULT_CHANNEL), bytes(message.toString()));
+            return null;
+        });
+    }
+
+    /**
+     * 等待订单的结果
+     *
+     * @param orderId 订单id
+     * @param userId  当前用户 只能查自己的订单
+     * @return 挂起的请求 超时了返回处理中
+     */
+    public DeferredResult<Result> await(Long orderId, Long userId) {
+        DeferredResult<Result> deferred = new DeferredResult<>(pollTimeout, Result.ok(PROCESSING));
+        Waiter waiter = new Waiter(userId, deferred);
+        // 1.先挂上去再查redis 这样查完之前来的广播也不会漏掉
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(waiter);
+        deferred.onCompletion(() -> waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(waiter);
+            return list.isEmpty() ? null : list;
+        }));
+        // 2.异步查一下结果是不是已经有了(还在处理中的继续等广播)
+        redisAsyncConnection.async().get(SECKILL_ORDER_RESULT_KEY + orderId)
+                .thenAccept(value -> {
+                    if (value != null && !isProcessing(value)) {
+                        complete(waiter, value);
+                    }
+                })
+                .exceptionally(e -> {
+                    log.error("查询下单结果异常 orderId={}", orderId, e);
+                    return null;
+                });
+        return deferred;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        for (String item : body.split(",")) {
+            // 订单id:用户id:状态
+            int index = item.indexOf(':');
+            if (index < 0) {
+                continue;
+            }
+            List<Waiter> list = waiters.get(Long.valueOf(item.substring(0, index)));
+            if (list == null) {
+                continue;
+            }
+            for (Waiter waiter : list) {
+                complete(waiter, item.substring(index + 1));
+            }
+        }
+    }
+
+    /**
+     * @param value 用户id:状态(后面可能还有:优惠券id:数量)
+     */
+    private void complete(Waiter waiter, String value) {
+        String[] parts = value.split(":");
+        if (!waiter.userId.toString().equals(parts[0])) {
+            waiter.deferred.setResult(Result.fail("订单不存在"));
+            return;
+        }
+        waiter.deferred.setResult(Result.ok(Integer.valueOf(parts[1])));
+    }
+
+    private static boolean isProcessing(String value) {
+        String[] parts = value.split(":");
+        return parts.length > 1 && Integer.parseInt(parts[1]) == PROCESSING;
+    }
+
+    private static byte[] bytes(String str) {
+        return str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Waiter {
+        private final Long userId;
+        private final DeferredResult<Result> deferred;
+
+        private Waiter(Long userId, DeferredResult<Result> deferred) {
+            this.userId = userId;
+            this.deferred = deferred;
+        }
+    }
+}
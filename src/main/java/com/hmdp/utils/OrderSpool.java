@@ -0,0 +1,357 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 订单的本地落盘队列(mysql不可用的时候用)
+ * 消费者写不进数据库的订单先追加到本地的日志文件里面 然后就可以ack掉stream的消息 数据库恢复以后按顺序重放
+ * <p>
+ * 1.日志按段存放 spool/00000000000000000001.log ... 写满一段就换下一段 重放完的段直接删掉
+ * 2.每条记录是 [长度][crc32][订单id 用户id 优惠券id 数量] 重启的时候校验 写了一半的尾巴截掉
+ * 加上数量之前写的记录没有最后的数量(长度是24) 读出来就是买1个
+ * 3.组提交: 所有写入交给一个线程 把排队的写入合并成一次write + 一次fsync 再一起通知调用方
+ * 4.重放的进度存在 spool/checkpoint 里面(写临时文件再rename)
+ */
+@Slf4j
+@Component
+public class OrderSpool {
+
+    // 落盘目录
+    @Value("${hmdp.seckill.spool.dir:spool}")
+    private String dir;
+
+    // 每段最大多少字节
+    @Value("${hmdp.seckill.spool.segment-size:67108864}")
+    private long segmentSize;
+
+    // 记录头: 长度 + crc32
+    private static final int HEADER_SIZE = 8;
+    // 记录内容: 订单id 用户id 优惠券id 数量
+    private static final int PAYLOAD_SIZE = 28;
+    // 没有数量的老记录
+    private static final int LEGACY_PAYLOAD_SIZE = 24;
+    private static final String SUFFIX = ".log";
+
+    private Path root;
+
+    // 等待写入的订单(组提交)
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private Thread writer;
+
+    // 正在写的段
+    private FileChannel activeChannel;
+
+    // 已经fsync到的位置(正在写的段, 段内的位置)
+    private volatile Position flushed;
+
+    // 重放到的位置
+    private volatile Position read;
+
+    // (段, 段内的位置) 两个值一起换 读的时候不会看到换段换了一半
+    private static class Position {
+        private final long segment;
+        private final long position;
+
+        Position(long segment, long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+    }
+
+    private static class PendingWrite {
+        private final List<VoucherOrder> orders;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingWrite(List<VoucherOrder> orders) {
+            this.orders = orders;
+        }
+    }
+
+    /**
+     * 落盘队列的标识 机器名:目录的绝对路径(重启以后进程号变了 还是同一个)
+     */
+    public String id() {
+        return NodeInfo.NODE_ID.substring(NodeInfo.NODE_ID.indexOf('@') + 1) + ":" + root.toAbsolutePath().normalize();
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        root = Paths.get(dir);
+        Files.createDirectories(root);
+        // 1.重放的进度
+        Path checkpoint = root.resolve("checkpoint");
+        List<Long> segments = listSegments();
+        if (Files.exists(checkpoint)) {
+            String[] parts = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim().split(" ");
+            read = new Position(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+        } else {
+            read = new Position(segments.isEmpty() ? 1L : segments.get(0), 0L);
+        }
+        // 2.打开最后一段接着写 写了一半的记录截掉
+        long activeSegment = segments.isEmpty() ? read.segment : segments.get(segments.size() - 1);
+        activeChannel = FileChannel.open(segmentPath(activeSegment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = validEnd(activeChannel);
+        if (end < activeChannel.size()) {
+            log.warn("订单落盘文件尾部不完整 已截断 segment={} from={} to={}", activeSegment, activeChannel.size(), end);
+            activeChannel.truncate(end);
+        }
+        activeChannel.position(end);
+        flushed = new Position(activeSegment, end);
+        if (!isEmpty()) {
+            log.warn("本地还有未重放的订单 segment={} position={}", read.segment, read.position);
+        }
+        // 3.组提交的写线程
+        writer = new Thread(this::writeLoop, "order-spool-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws IOException {
+        writer.interrupt();
+        activeChannel.close();
+    }
+
+    /**
+     * 有没有还没重放的订单
+     */
+    public boolean isEmpty() {
+        Position r = read;
+        Position f = flushed;
+        return r.segment == f.segment && r.position >= f.position;
+    }
+
+    /**
+     * 追加一批订单 fsync之后才返回(和同一时间的其他写入一起组提交)
+     */
+    public void append(List<VoucherOrder> orders) {
+        PendingWrite write = new PendingWrite(orders);
+        queue.add(write);
+        try {
+            write.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("订单落盘被中断", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("订单落盘失败", e.getCause());
+        }
+    }
+
+    /**
+     * 按顺序重放 每读出一批就交给sink sink返回true才往前推进度 返回false就停下来等下一次
+     *
+     * @param batchSize 每批多少条
+     * @param sink      处理一批订单
+     * @return 这次重放了多少条
+     */
+    public synchronized int replay(int batchSize, Predicate<List<VoucherOrder>> sink) throws IOException {
+        int replayed = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(batchSize * (HEADER_SIZE + PAYLOAD_SIZE));
+        while (!isEmpty()) {
+            Position r = read;
+            Position f = flushed;
+            long segment = r.segment;
+            long readPosition = r.position;
+            // 1.这一段能读到哪(正在写的段只读到fsync过的位置)
+            long end = segment == f.segment ? f.position : Files.size(segmentPath(segment));
+            if (readPosition >= end) {
+                // 这一段读完了 删掉 接着读下一段
+                saveCheckpoint(segment + 1, 0L);
+                Files.deleteIfExists(segmentPath(segment));
+                continue;
+            }
+            // 2.读一批
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - readPosition));
+            try (FileChannel channel = FileChannel.open(segmentPath(segment), StandardOpenOption.READ)) {
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, readPosition + buffer.position()) < 0) {
+                        break;
+                    }
+                }
+            }
+            buffer.flip();
+            List<VoucherOrder> orders = new ArrayList<>(batchSize);
+            while (buffer.remaining() >= HEADER_SIZE && buffer.remaining() >= HEADER_SIZE + buffer.getInt(buffer.position())) {
+                orders.add(decode(buffer));
+            }
+            long position = readPosition + buffer.position();
+            // 3.处理成功了才推进度
+            if (!sink.test(orders)) {
+                break;
+            }
+            saveCheckpoint(segment, position);
+            replayed += orders.size();
+        }
+        return replayed;
+    }
+
+    private void writeLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // 1.等第一个写入 然后把排着队的一起拿出来
+                batch.add(queue.take());
+                queue.drainTo(batch);
+                // 2.一次write 一次fsync
+                try {
+                    writeBatch(batch);
+                    batch.forEach(w -> w.done.complete(null));
+                } catch (IOException e) {
+                    log.error("订单落盘失败", e);
+                    batch.forEach(w -> w.done.completeExceptionally(e));
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeBatch(List<PendingWrite> batch) throws IOException {
+        int count = batch.stream().mapToInt(w -> w.orders.size()).sum();
+        ByteBuffer buffer = ByteBuffer.allocate(count * (HEADER_SIZE + PAYLOAD_SIZE));
+        for (PendingWrite write : batch) {
+            for (VoucherOrder order : write.orders) {
+                encode(buffer, order);
+            }
+        }
+        buffer.flip();
+        // 当前段写满了换下一段
+        Position f = flushed;
+        long segment = f.segment;
+        if (f.position > 0 && f.position + buffer.remaining() > segmentSize) {
+            activeChannel.force(true);
+            activeChannel.close();
+            segment++;
+            activeChannel = FileChannel.open(segmentPath(segment),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            flushed = new Position(segment, 0L);
+        }
+        while (buffer.hasRemaining()) {
+            activeChannel.write(buffer);
+        }
+        activeChannel.force(false);
+        flushed = new Position(segment, activeChannel.position());
+    }
+
+    private static void encode(ByteBuffer buffer, VoucherOrder order) {
+        ByteBuffer payload = ByteBuffer.allocate(PAYLOAD_SIZE);
+        payload.putLong(order.getId()).putLong(order.getUserId()).putLong(order.getVoucherId()).putInt(order.getQuantity());
+        buffer.putInt(PAYLOAD_SIZE).putInt(crc(payload.array())).put(payload.array());
+    }
+
+    private static VoucherOrder decode(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        buffer.getInt();
+        VoucherOrder order = new VoucherOrder();
+        order.setId(buffer.getLong());
+        order.setUserId(buffer.getLong());
+        order.setVoucherId(buffer.getLong());
+        order.setQuantity(length == PAYLOAD_SIZE ? buffer.getInt() : 1);
+        return order;
+    }
+
+    /**
+     * 从头校验一遍 返回最后一条完整记录的结束位置
+     */
+    private static long validEnd(FileChannel channel) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + PAYLOAD_SIZE);
+        while (position + HEADER_SIZE + LEGACY_PAYLOAD_SIZE <= size) {
+            // 1.先读记录头 看这条记录有多长
+            record.clear();
+            record.limit(HEADER_SIZE);
+            if (!readFully(channel, record, position)) {
+                return position;
+            }
+            record.flip();
+            int length = record.getInt();
+            int crc = record.getInt();
+            if ((length != PAYLOAD_SIZE && length != LEGACY_PAYLOAD_SIZE) || position + HEADER_SIZE + length > size) {
+                return position;
+            }
+            // 2.再读记录内容 校验crc
+            record.clear();
+            record.limit(length);
+            if (!readFully(channel, record, position + HEADER_SIZE)) {
+                return position;
+            }
+            byte[] payload = new byte[length];
+            record.flip();
+            record.get(payload);
+            if (crc != crc(payload)) {
+                return position;
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+        return (int) crc32.getValue();
+    }
+
+    private void saveCheckpoint(long segment, long position) throws IOException {
+        Path tmp = root.resolve("checkpoint.tmp");
+        Files.write(tmp, (segment + " " + position).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, root.resolve("checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        read = new Position(segment, position);
+    }
+
+    private Path segmentPath(long segment) {
+        return root.resolve(String.format("%020d%s", segment, SUFFIX));
+    }
+
+    private List<Long> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(root)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.endsWith(SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(0, name.length() - SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
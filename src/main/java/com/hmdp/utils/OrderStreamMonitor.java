@@ -0,0 +1,231 @@
+package com.hmdp.utils;
+
+import io.lettuce.core.XTrimArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisZSetCommands.Limit;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * 订单stream的积压监控和裁剪
+ * 1.每个节点定时查看所有分片的消费情况(xinfo groups / xpending / xinfo consumers) 算出积压了多久
+ * 2.还没投递给消费者的最早一条消息等得太久了 就在秒杀入口拒绝新的请求(背压) 积压降下来了再放开
+ * 3.当前节点负责的分片 所有消费者组都已经ack的消息用 xtrim minid ~ 裁掉(保留最近一段时间的方便排查)
+ * <p>
+ * pending的消息不算积压(卡住的消息有recoverPendingOrders重试和死信兜底) 只在监控里面展示
+ */
+@Slf4j
+@Component
+public class OrderStreamMonitor {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private OrderStreamRouter orderStreamRouter;
+
+    // 已经ack的消息至少保留多久(毫秒)
+    @Value("${hmdp.seckill.stream.retention:600000}")
+    private long retention;
+
+    // 还没投递的消息等了多久(毫秒)就开始背压 0表示不背压
+    @Value("${hmdp.seckill.stream.lag-threshold:30000}")
+    private long lagThreshold;
+
+    // 是否正在背压(积压超过阈值打开 降到阈值的一半以下才关掉 避免来回切换)
+    private volatile boolean backpressured;
+
+    // 最近一次监控的结果 分片 -> 消费情况
+    private volatile Map<String, Object> lastSnapshot = Collections.emptyMap();
+
+    /**
+     * 订单积压太多 秒杀入口要拒绝新的请求
+     */
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+
+    /**
+     * 最近一次监控到的每个分片的消费情况
+     */
+    public Map<String, Object> snapshot() {
+        return lastSnapshot;
+    }
+
+    /**
+     * 有没有早于cutoff进入stream 但是还没处理完的订单(还没投递的 或者在pending-list里面的) 实时查询
+     * 对账用: 这些订单落库比settle-lag晚 水位推过去以后就再也数不到了
+     *
+     * @param cutoff 毫秒时间戳
+     */
+    public boolean hasUnsettledOrdersBefore(long cutoff) {
+        for (int i = 0; i < orderStreamRouter.getShardCount(); i++) {
+            String key = orderStreamRouter.streamKey(i);
+            for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(key).stream().collect(Collectors.toList())) {
+                // 1.pending里面最早的一条
+                if (group.pendingCount() > 0) {
+                    PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(key, group.groupName());
+                    if (pending.minMessageId() != null && timestampOf(pending.minMessageId()) < cutoff) {
+                        return true;
+                    }
+                }
+                // 2.还没投递的最早一条
+                List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(key,
+                        Range.rightUnbounded(Range.Bound.inclusive(group.lastDeliveredId())), Limit.limit().count(2));
+                if (next != null) {
+                    for (MapRecord<String, Object, Object> record : next) {
+                        if (!record.getId().getValue().equals(group.lastDeliveredId())) {
+                            if (record.getId().getTimestamp() < cutoff) {
+                                return true;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.stream.monitor-interval:5000}")
+    public void monitor() {
+        long now = System.currentTimeMillis();
+        long maxLag = 0;
+        Map<String, Object> snapshot = new TreeMap<>();
+        List<String> assigned = orderStreamRouter.getAssignedStreams();
+        for (int i = 0; i < orderStreamRouter.getShardCount(); i++) {
+            String key = orderStreamRouter.streamKey(i);
+            try {
+                // 1.每个消费者组的消费情况
+                StreamInfo.XInfoGroups groups = stringRedisTemplate.opsForStream().groups(key);
+                Map<String, Object> stream = new TreeMap<>();
+                stream.put("length", stringRedisTemplate.opsForStream().size(key));
+                String trimBefore = null;
+                for (StreamInfo.XInfoGroup group : groups.stream().collect(Collectors.toList())) {
+                    Map<String, Object> info = inspectGroup(key, group, now);
+                    stream.put(group.groupName(), info);
+                    maxLag = Math.max(maxLag, (Long) info.get("lagMillis"));
+                    // 这个组还没ack的最早一条(没有pending就是最后投递的那条) 之前的都可以删
+                    String safeId = group.pendingCount() > 0 ? (String) info.get("oldestPendingId") : group.lastDeliveredId();
+                    trimBefore = trimBefore == null || compare(safeId, trimBefore) < 0 ? safeId : trimBefore;
+                }
+                snapshot.put(key, stream);
+                // 2.裁剪当前节点负责的分片(没有消费者组的stream不裁)
+                if (trimBefore != null && assigned.contains(key)) {
+                    String retained = (now - retention) + "-0";
+                    xtrim(key, compare(trimBefore, retained) < 0 ? trimBefore : retained);
+                }
+            } catch (Exception e) {
+                log.error("订单stream监控异常 stream={}", key, e);
+            }
+        }
+        lastSnapshot = snapshot;
+        // 3.背压
+        if (lagThreshold > 0) {
+            if (!backpressured && maxLag > lagThreshold) {
+                backpressured = true;
+                log.warn("订单积压超过阈值 秒杀入口开始限流 lag={}ms threshold={}ms", maxLag, lagThreshold);
+            } else if (backpressured && maxLag < lagThreshold / 2) {
+                backpressured = false;
+                log.info("订单积压已恢复 秒杀入口解除限流 lag={}ms", maxLag);
+            }
+        }
+    }
+
+    /**
+     * 一个消费者组的消费情况
+     * pending: 投递了还没ack的条数  oldestPendingMillis: 其中最早的一条等了多久
+     * lagMillis: 还没投递的最早一条等了多久  consumers: 每个消费者的pending条数和空闲时间
+     */
+    private Map<String, Object> inspectGroup(String key, StreamInfo.XInfoGroup group, long now) {
+        Map<String, Object> info = new TreeMap<>();
+        info.put("pending", group.pendingCount());
+        info.put("lastDeliveredId", group.lastDeliveredId());
+        // 1.pending里面最早的一条 xpending stream.order:{k} g1
+        long oldestPendingMillis = 0;
+        if (group.pendingCount() > 0) {
+            PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(key, group.groupName());
+            info.put("oldestPendingId", pending.minMessageId());
+            oldestPendingMillis = now - timestampOf(pending.minMessageId());
+        }
+        info.put("oldestPendingMillis", Math.max(oldestPendingMillis, 0));
+        // 2.最后投递的那条之后的第一条 就是还没投递的最早一条 xrange stream.order:{k} lastDeliveredId + count 2
+        long lagMillis = 0;
+        List<MapRecord<String, Object, Object>> next = stringRedisTemplate.opsForStream().range(key,
+                Range.rightUnbounded(Range.Bound.inclusive(group.lastDeliveredId())), Limit.limit().count(2));
+        if (next != null) {
+            for (MapRecord<String, Object, Object> record : next) {
+                if (!record.getId().getValue().equals(group.lastDeliveredId())) {
+                    lagMillis = Math.max(now - record.getId().getTimestamp(), 0);
+                    break;
+                }
+            }
+        }
+        info.put("lagMillis", lagMillis);
+        // 3.每个消费者 xinfo consumers stream.order:{k} g1
+        Map<String, Object> consumers = new TreeMap<>();
+        StreamInfo.XInfoConsumers xInfoConsumers = stringRedisTemplate.opsForStream().consumers(key, group.groupName());
+        for (StreamInfo.XInfoConsumer consumer : xInfoConsumers.stream().collect(Collectors.toList())) {
+            Map<String, Object> c = new TreeMap<>();
+            c.put("pending", consumer.pendingCount());
+            c.put("idleMillis", consumer.idleTimeMs());
+            consumers.put(consumer.consumerName(), c);
+        }
+        info.put("consumers", consumers);
+        return info;
+    }
+
+    /**
+     * xtrim stream.order:{k} minid ~ id 删掉id之前的消息(~表示按整个节点删 不一定删干净 但是快)
+     * spring data redis 还不支持minid 这里直接用lettuce的原生连接
+     */
+    @SuppressWarnings("unchecked")
+    private void xtrim(String key, String minId) {
+        Long trimmed = stringRedisTemplate.execute((RedisCallback<Long>) connection -> {
+            RedisClusterAsyncCommands<byte[], byte[]> commands =
+                    (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            try {
+                return commands.xtrim(key.getBytes(StandardCharsets.UTF_8),
+                        new XTrimArgs().minId(minId).approximateTrimming()).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0L;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("xtrim失败", e.getCause());
+            }
+        });
+        if (trimmed != null && trimmed > 0) {
+            log.debug("订单stream已裁剪 stream={} minId={} trimmed={}", key, minId, trimmed);
+        }
+    }
+
+    private static long timestampOf(String id) {
+        return RecordId.of(id).getTimestamp();
+    }
+
+    // 比较两个消息id(毫秒时间戳-序号)
+    private static int compare(String a, String b) {
+        RecordId x = RecordId.of(a);
+        RecordId y = RecordId.of(b);
+        int c = Long.compare(x.getTimestamp(), y.getTimestamp());
+        return c != 0 ? c : Long.compare(x.getSequence(), y.getSequence());
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 订单stream的分片路由
+ * 订单消息按用户id分到 stream.order:{0} ... stream.order:{n-1} 这n个stream里面(在seckill.lua里面选分片)
+ * 每个节点启动的时候创建好所有分片的消费者组 然后通过心跳注册自己 按节点的排序把分片平均分给各个节点
+ * 分片只是把消费订单(落库)的工作分给多个节点 所有分片都在同一个redis主节点上(不支持cluster 见RedisAsyncConfig)
+ */
+@Slf4j
+@Component
+public class OrderStreamRouter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 订单stream的分片数(所有节点必须一样)
+    @Value("${hmdp.seckill.stream.shards:4}")
+    private int shardCount;
+
+    // 分给当前节点消费的分片(心跳的时候重新计算)
+    private volatile List<String> assignedStreams = Collections.emptyList();
+
+    // 心跳用单独的线程 不和其他@Scheduled任务共用spring默认的那一个调度线程
+    // 对账、重建这些耗时的任务会把心跳拖过SECKILL_ORDER_NODE_TTL 节点明明活着却被当成挂了(租约被回收 分片被接管)
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "order-node-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void init() {
+        // 1.创建所有分片的消费者组
+        createGroups();
+        // 2.注册当前节点 并且分配分片
+        heartbeat();
+        heartbeatExecutor.scheduleAtFixedRate(this::heartbeat, 5, 5, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        heartbeatExecutor.shutdownNow();
+        // 节点下线 把自己从节点列表里面删掉 其他节点下一次心跳就会接管分片
+        stringRedisTemplate.opsForZSet().remove(SECKILL_ORDER_NODES_KEY, NodeInfo.NODE_ID);
+    }
+
+    /**
+     * 分片数
+     */
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * 第shard个分片的stream的key
+     */
+    public String streamKey(int shard) {
+        return SECKILL_ORDER_STREAM_KEY + "{" + shard + "}";
+    }
+
+    /**
+     * 当前节点负责消费的分片
+     */
+    public List<String> getAssignedStreams() {
+        return assignedStreams;
+    }
+
+    /**
+     * 创建所有分片的消费者组 xgroup create stream.order:{k} g1 0 mkstream
+     * 已经存在的跳过 redis数据丢失以后重建的时候也要调用
+     */
+    public void createGroups() {
+        for (int i = 0; i < shardCount; i++) {
+            createGroup(streamKey(i));
+        }
+    }
+
+    /**
+     * 心跳 zset里面存的是 节点id -> 最后一次心跳的时间
+     * 超过SECKILL_ORDER_NODE_TTL秒没有心跳的节点就认为挂了
+     */
+    public void heartbeat() {
+        try {
+            long now = System.currentTimeMillis();
+            // 1.刷新自己的心跳
+            stringRedisTemplate.opsForZSet().add(SECKILL_ORDER_NODES_KEY, NodeInfo.NODE_ID, now);
+            // 2.删掉过期的节点
+            stringRedisTemplate.opsForZSet().removeRangeByScore(
+                    SECKILL_ORDER_NODES_KEY, 0, now - TimeUnit.SECONDS.toMillis(SECKILL_ORDER_NODE_TTL));
+            // 3.所有存活的节点 按节点id排序 每个节点算出来的顺序都一样
+            Set<String> nodes = stringRedisTemplate.opsForZSet().range(SECKILL_ORDER_NODES_KEY, 0, -1);
+            if (nodes == null || nodes.isEmpty()) {
+                return;
+            }
+            List<String> sorted = new ArrayList<>(nodes);
+            Collections.sort(sorted);
+            int index = sorted.indexOf(NodeInfo.NODE_ID);
+            // 4.分片k分给第 k % 节点数 个节点
+            List<String> streams = new ArrayList<>();
+            for (int i = 0; i < shardCount; i++) {
+                if (i % sorted.size() == index) {
+                    streams.add(streamKey(i));
+                }
+            }
+            if (!streams.equals(assignedStreams)) {
+                log.info("订单stream分片重新分配 节点数={} 当前节点负责={}", sorted.size(), streams);
+            }
+            assignedStreams = streams;
+        } catch (Exception e) {
+            // 心跳失败就继续用上一次的分配结果
+            log.error("订单stream节点心跳异常", e);
+        }
+    }
+
+    private void createGroup(String key) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) (RedisConnection connection) ->
+                    connection.streamCommands().xGroupCreate(
+                            key.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            // 消费者组已经存在(其他节点已经创建了)
+            if (!StrUtil.contains(e.getMostSpecificCause().getMessage(), "BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+}
@@ -11,11 +11,36 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String SHOP_LIST_KEY = "shop:list:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_FILTER_CHANNEL = "cache:filter";
+    // 最近新增的id(zset 分数是新增的时间) 布隆过滤器说不存在的时候再查一下这里
+    public static final String CACHE_FILTER_ADDED_KEY = "cache:filter:added:";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String CACHE_LOCK_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    public static final String SECKILL_LEASE_CHUNK_KEY = "seckill:lease:chunk:";
+    public static final String SECKILL_ROOM_KEY = "seckill:room:";
+    public static final String SECKILL_ROOM_RATE_KEY = "seckill:room:rate:";
+    public static final String SECKILL_ROOM_TICKETS_KEY = "seckill:room:tickets:";
+    public static final String SECKILL_RECONCILE_KEY = "seckill:reconcile:";
+    public static final String SECKILL_RECONCILE_LOCK = "lock:seckill:reconcile";
+    public static final String SECKILL_SPOOL_NODES_KEY = "seckill:spool:nodes";
+    public static final String SECKILL_BOUGHT_KEY = "seckill:bought:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_ORDER_DEADLINE_KEY = "seckill:order:deadline";
+    public static final String SECKILL_ORDER_RESULT_KEY = "seckill:order:result:";
+    public static final Long SECKILL_ORDER_RESULT_TTL = 30L;
+    public static final String SECKILL_ORDER_RESULT_CHANNEL = "seckill:order:result";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.order:";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_ORDER_DEAD_KEY = "stream.order:dead";
+    public static final String SECKILL_ORDER_NODES_KEY = "stream.order:nodes";
+    public static final Long SECKILL_ORDER_NODE_TTL = 15L;
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FOLLOWS_KEY = "follows:";
     public static final String FEED_KEY = "feed:";
@@ -40,6 +40,41 @@ public class RedisIdWorker {
         return timestamp << COUNT_BITS | count;
     }
 
+    /**
+     * 时间戳部分(和nextId的算法一样) 给需要在lua脚本里面生成id的地方用
+     */
+    public static long timestamp(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 序列号自增的key(和nextId的一样) icr前缀:日期
+     */
+    public static String counterKey(String keyPrefix, LocalDateTime now) {
+        return "icr" + keyPrefix + ":" + now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
+    }
+
+    /**
+     * 这个时间点生成的最小的id(序列号为0) 可以用来按时间范围查订单
+     */
+    public static long minIdAt(LocalDateTime time) {
+        return timestamp(time) << COUNT_BITS;
+    }
+
+    /**
+     * 从id里面取出时间戳部分(和timestamp()一样的单位)
+     */
+    public static long timestampOf(long id) {
+        return id >> COUNT_BITS;
+    }
+
+    /**
+     * id是什么时候生成的
+     */
+    public static LocalDateTime timeOf(long id) {
+        return LocalDateTime.ofEpochSecond(timestampOf(id) + BEGIN_TIMESTAMP, 0, ZoneOffset.UTC);
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2023, 2, 1, 0, 0, 0);
         long second = time.toEpochSecond(ZoneOffset.UTC);
@@ -4,7 +4,7 @@ import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.UserDTO;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.AsyncHandlerInterceptor;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -19,7 +19,7 @@ import java.util.concurrent.TimeUnit;
  * postHandle 在 Controller 执行之后
  * afterCompletion 在渲染之后，返回给用户之前
  */
-public class RefreshTokenInterceptor implements HandlerInterceptor {
+public class RefreshTokenInterceptor implements AsyncHandlerInterceptor {
 
     // 这里不能使用@Resource注解进行注入，只能使用构造函数注入
     // 因为这个类是我们手动通过new创建出来的，不是由spring创建的
@@ -66,4 +66,10 @@ public class RefreshTokenInterceptor implements HandlerInterceptor {
         // 移除用户
         UserHolder.removeUser();
     }
+
+    @Override
+    public void afterConcurrentHandlingStarted(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 异步请求(返回CompletableFuture/DeferredResult)的第一次分发不会调用afterCompletion 在这里移除用户
+        UserHolder.removeUser();
+    }
 }
@@ -0,0 +1,48 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀相关的计数(当前节点启动以来的累计值)
+ */
+@Component
+public class SeckillMetrics {
+
+    /**
+     * 主键去重模式下被主键挡掉的重复订单(同一个订单的重复投递)
+     */
+    public static final String DUPLICATE_ORDERS = "duplicate-orders";
+
+    /**
+     * 对账发现的库存不一致(mysql和redis分开计数)
+     */
+    public static final String STOCK_DRIFT_DB = "stock-drift-db";
+    public static final String STOCK_DRIFT_REDIS = "stock-drift-redis";
+
+    /**
+     * 被限流拦掉的秒杀请求
+     */
+    public static final String RATE_LIMITED = "rate-limited";
+
+    /**
+     * 订单积压(背压)的时候拒绝的秒杀请求
+     */
+    public static final String BACKPRESSURE_REJECTED = "backpressure-rejected";
+
+    private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public void increment(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, value) -> snapshot.put(name, value.get()));
+        return snapshot;
+    }
+}
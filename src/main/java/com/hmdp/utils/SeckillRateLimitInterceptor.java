@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.annotation.Resource;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 秒杀接口的限流拦截器(在生成订单id 执行秒杀脚本之前拦掉)
+ * 整个券 每个用户 每个ip 各一个令牌桶 放在redis里面 所有节点共用 一次lua脚本全部检查完
+ * 被限流的key在本地记下来 在令牌补上之前同一个key的请求直接拒绝 不再访问redis
+ * <p>
+ * 券单独的配置写在 seckill:limit:id 里面(voucher-rate voucher-burst user-rate user-burst ip-rate ip-burst)
+ * 没有配置的用 hmdp.seckill.limit 下面的默认值 速率是0表示不限流
+ */
+@Slf4j
+@Component
+public class SeckillRateLimitInterceptor implements HandlerInterceptor {
+
+    // 这个拦截器是spring创建的(MvcConfig里面注入进去) 所以可以用@Resource
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SeckillMetrics seckillMetrics;
+
+    @Value("${hmdp.seckill.limit.voucher-rate:0}")
+    private double voucherRate;
+
+    @Value("${hmdp.seckill.limit.voucher-burst:0}")
+    private double voucherBurst;
+
+    @Value("${hmdp.seckill.limit.user-rate:1}")
+    private double userRate;
+
+    @Value("${hmdp.seckill.limit.user-burst:3}")
+    private double userBurst;
+
+    @Value("${hmdp.seckill.limit.ip-rate:10}")
+    private double ipRate;
+
+    @Value("${hmdp.seckill.limit.ip-burst:20}")
+    private double ipBurst;
+
+    // 本地最多记多少个被限流的key 超过了就清空(防止被刷爆内存)
+    private static final int MAX_BLOCKED_KEYS = 100000;
+
+    @SuppressWarnings("rawtypes")
+    private static final DefaultRedisScript<List> LIMIT_SCRIPT;
+
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("seckill_limit.lua"));
+        LIMIT_SCRIPT.setResultType(List.class);
+    }
+
+    // 被限流的key -> 什么时候(毫秒)解除
+    private final Map<String, Long> blocked = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        // 1.从路径里面拿优惠券id /voucher-order/seckill/{id}
+        @SuppressWarnings("unchecked")
+        Map<String, String> variables =
+                (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String voucherId = variables == null ? null : variables.get("id");
+        if (voucherId == null) {
+            return true;
+        }
+        UserDTO user = UserHolder.getUser();
+        String userId = user == null ? "" : user.getId().toString();
+        String ip = request.getRemoteAddr();
+
+        // 2.本地记着的还在限流中的key 直接拒绝
+        String[] keys = {"v:" + voucherId, "u:" + voucherId + ":" + userId, "ip:" + voucherId + ":" + ip};
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Long until = blocked.get(key);
+            if (until == null) {
+                continue;
+            }
+            if (until > now) {
+                return reject(response);
+            }
+            blocked.remove(key, until);
+        }
+
+        // 3.redis里面的令牌桶 [0, 0]放行 [第几个桶, 还要等多少毫秒]限流
+        List<?> result = stringRedisTemplate.execute(
+                LIMIT_SCRIPT,
+                Collections.emptyList(),
+                voucherId, userId, ip,
+                String.valueOf(voucherRate), String.valueOf(voucherBurst),
+                String.valueOf(userRate), String.valueOf(userBurst),
+                String.valueOf(ipRate), String.valueOf(ipBurst)
+        );
+        int bucket = ((Long) result.get(0)).intValue();
+        if (bucket == 0) {
+            return true;
+        }
+        // 4.记下被限流的key 等令牌补上了再放过去
+        if (blocked.size() > MAX_BLOCKED_KEYS) {
+            blocked.clear();
+        }
+        blocked.put(keys[bucket - 1], now + (Long) result.get(1));
+        return reject(response);
+    }
+
+    private boolean reject(HttpServletResponse response) throws Exception {
+        seckillMetrics.increment(SeckillMetrics.RATE_LIMITED, 1);
+        // 429 Too Many Requests
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("请求太频繁，请稍后再试")));
+        return false;
+    }
+}
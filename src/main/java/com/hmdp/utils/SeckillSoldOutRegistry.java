@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本地的售罄标记
+ * 卖完之后大部分的秒杀请求都是来抢已经没有库存的券 直接在内存里面判断掉 不再生成订单id也不再执行lua脚本
+ * 一个节点发现卖完了就通过pub/sub通知其他节点 重新上库存的时候再清掉标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 标记的有效期(毫秒) 过期了就放一个请求去redis里面再确认一次 防止广播乱序导致一直误判为售罄
+    @Value("${hmdp.seckill.sold-out.ttl:5000}")
+    private long soldOutTtl;
+
+    // 优惠券id -> 标记为售罄的时间
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+    }
+
+    /**
+     * 判断优惠券是否已经售罄(只看本地内存)
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > soldOutTtl) {
+            // 过期了 删掉标记让下一个请求去redis里面确认
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记售罄 并通知其他节点
+     */
+    public void markSoldOut(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis());
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":1");
+    }
+
+    /**
+     * 重新上库存 清掉售罄标记 并通知其他节点
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId + ":0");
+    }
+
+    /**
+     * 收到其他节点的广播 消息格式是 优惠券id:1(售罄) 或者 优惠券id:0(重新上库存)
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        String[] parts = body.split(":");
+        if (parts.length != 2) {
+            log.error("售罄广播消息格式不正确 {}", body);
+            return;
+        }
+        Long voucherId = Long.valueOf(parts[0]);
+        if ("1".equals(parts[1])) {
+            soldOut.put(voucherId, System.currentTimeMillis());
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 库存租约
+ * 大库存的秒杀券(配置了 seckill:lease:chunk:id) 每个节点从redis的库存里面一次租一块(比如500个)到本地内存
+ * 秒杀的时候先在本地用CAS扣库存 扣到了才去执行lua脚本(只做限购和发消息 不再检查redis的库存)
+ * 本地扣完了再去续租 租约过期了把没卖出去的还回redis 节点挂了由其他节点回收
+ * seckill:lease:id 里面记的是每个节点手里还没卖出去的数量 对账和重建的时候都算作库存
+ * <p>
+ * 节点被误判成挂了(心跳延迟)的时候 它的租约会被别的节点回收 这时候本地的remaining已经不作数了
+ * 所以秒杀脚本扣租约之前还要检查redis里面这个节点手里够不够 不够返回租约已回收 节点丢掉本地的租约重新租
+ * 扣本地库存的时候拿到的是当时的租约对象 还回去也只还到这个租约上(已经回收的租约不再接收)
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 租约的有效期(毫秒) 过期了把没卖完的还回去 下一个请求再重新租
+    @Value("${hmdp.seckill.lease.ttl:30000}")
+    private long leaseTtl;
+
+    // 每个券租多少个的配置在本地缓存多久(毫秒) 改了配置以后别的节点最多这么久生效
+    @Value("${hmdp.seckill.lease.config-ttl:30000}")
+    private long configTtl;
+
+    // 最多缓存多少个券的配置
+    @Value("${hmdp.seckill.lease.config-size:10000}")
+    private int configSize;
+
+    private static final DefaultRedisScript<Long> LEASE_SCRIPT;
+    private static final DefaultRedisScript<Long> RETURN_SCRIPT;
+
+    static {
+        LEASE_SCRIPT = new DefaultRedisScript<>();
+        LEASE_SCRIPT.setLocation(new ClassPathResource("seckill_lease.lua"));
+        LEASE_SCRIPT.setResultType(Long.class);
+
+        RETURN_SCRIPT = new DefaultRedisScript<>();
+        RETURN_SCRIPT.setLocation(new ClassPathResource("seckill_lease_return.lua"));
+        RETURN_SCRIPT.setResultType(Long.class);
+    }
+
+    // 优惠券id -> 每次租多少个(0表示不用租约) 有数量上限和有效期 只缓存redis里面有配置或者已经加载了的券
+    private LRUCache<Long, Integer> chunks;
+
+    // 优惠券id -> 本地的租约
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        chunks = CacheUtil.newLRUCache(configSize, configTtl);
+    }
+
+    /**
+     * 本地的租约 扣库存的时候返回给调用方 没下单成功的时候用来归还
+     */
+    public static class Lease {
+        // 本地还剩多少个
+        private final AtomicInteger remaining = new AtomicInteger();
+        // 什么时候过期
+        private volatile long expiresAt;
+        // redis里面已经被回收了 本地的库存不能再用
+        private volatile boolean revoked;
+    }
+
+    /**
+     * 这个优惠券是否使用库存租约
+     */
+    public boolean isLeased(Long voucherId) {
+        return chunkOf(voucherId) > 0;
+    }
+
+    /**
+     * 只在本地扣quantity个库存(不访问redis)
+     *
+     * @return 扣到的租约 本地不够返回null
+     */
+    public Lease tryAcquireLocal(Long voucherId, int quantity) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && decrement(lease, quantity) ? lease : null;
+    }
+
+    /**
+     * 本地不够了 去redis续租 再扣quantity个
+     * 同一个优惠券同时只有一个线程去续租 其他线程等它租回来直接在本地扣
+     *
+     * @return 扣到的租约 null表示redis里面也没有库存了
+     */
+    public Lease renewAndAcquire(Long voucherId, int quantity) {
+        Lease lease = leases.computeIfAbsent(voucherId, k -> new Lease());
+        synchronized (lease) {
+            if (lease.revoked) {
+                // 刚被别的线程丢掉了 换成新的租约再来
+                return renewAndAcquire(voucherId, quantity);
+            }
+            if (decrement(lease, quantity)) {
+                return lease;
+            }
+            // 至少租够这一单要的数量
+            Long granted = stringRedisTemplate.execute(
+                    LEASE_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    NodeInfo.NODE_ID,
+                    String.valueOf(Math.max(chunkOf(voucherId), quantity))
+            );
+            if (granted == null || granted <= 0) {
+                return null;
+            }
+            lease.expiresAt = System.currentTimeMillis() + leaseTtl;
+            lease.remaining.addAndGet(granted.intValue());
+            // 自己先拿走quantity个(redis剩下的不够这一单 租到的留在本地给别人用)
+            return decrement(lease, quantity) ? lease : null;
+        }
+    }
+
+    /**
+     * 本地的租约里面还有没有库存(续租不够一单的时候用来区分是售罄了 还是只是不够这一单)
+     */
+    public boolean hasLocalStock(Long voucherId) {
+        Lease lease = leases.get(voucherId);
+        return lease != null && lease.remaining.get() > 0;
+    }
+
+    /**
+     * 扣了本地库存但是没有下单成功(超过限购 不在时间窗口内) 还回扣的那个租约(已经回收了的不还)
+     */
+    public void release(Lease lease, int quantity) {
+        synchronized (lease) {
+            if (!lease.revoked) {
+                lease.remaining.addAndGet(quantity);
+            }
+        }
+    }
+
+    /**
+     * 秒杀脚本发现redis里面这个节点的租约已经被回收了(被误判成挂了) 丢掉本地的租约 下一个请求重新租
+     * 本地剩下的不用还(redis里面已经还回库存了)
+     */
+    public void revoke(Long voucherId, Lease lease) {
+        synchronized (lease) {
+            if (lease.revoked) {
+                return;
+            }
+            lease.revoked = true;
+            int units = lease.remaining.getAndSet(0);
+            leases.remove(voucherId, lease);
+            log.warn("库存租约已经被回收 丢掉本地的租约 voucherId={} units={}", voucherId, units);
+        }
+    }
+
+    /**
+     * 过期的租约 没卖完的还回redis
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void expireLeases() {
+        long now = System.currentTimeMillis();
+        leases.forEach((voucherId, lease) -> {
+            if (lease.expiresAt > now) {
+                return;
+            }
+            synchronized (lease) {
+                if (lease.revoked) {
+                    return;
+                }
+                int units = lease.remaining.getAndSet(0);
+                if (units > 0 && !returnUnits(voucherId, units)) {
+                    // 没还回去 留在本地接着用 下一轮再还
+                    lease.remaining.addAndGet(units);
+                }
+            }
+        });
+    }
+
+    /**
+     * 回收已经挂掉的节点手里的库存(节点的存活看订单stream的心跳)
+     */
+    @Scheduled(fixedDelay = 10000)
+    public void reclaimDeadLeases() {
+        long cutoff = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(SECKILL_ORDER_NODE_TTL);
+        for (Long voucherId : leases.keySet()) {
+            try {
+                for (Object node : stringRedisTemplate.opsForHash().keys(SECKILL_LEASE_KEY + voucherId)) {
+                    Double heartbeat = stringRedisTemplate.opsForZSet().score(SECKILL_ORDER_NODES_KEY, node);
+                    if (heartbeat == null || heartbeat < cutoff) {
+                        Long units = stringRedisTemplate.execute(RETURN_SCRIPT, Collections.emptyList(),
+                                voucherId.toString(), node.toString(), "-1");
+                        log.info("回收下线节点的库存租约 voucherId={} node={} units={}", voucherId, node, units);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("回收库存租约异常 voucherId={}", voucherId, e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 节点下线 手里的全部还回去
+        leases.forEach((voucherId, lease) -> {
+            int units = lease.remaining.getAndSet(0);
+            if (units > 0) {
+                returnUnits(voucherId, units);
+            }
+        });
+    }
+
+    private boolean returnUnits(Long voucherId, int units) {
+        try {
+            stringRedisTemplate.execute(RETURN_SCRIPT, Collections.emptyList(),
+                    voucherId.toString(), NodeInfo.NODE_ID, String.valueOf(units));
+            return true;
+        } catch (Exception e) {
+            // 没还回去的还记在seckill:lease:id里面 对账的时候算作库存 节点下线后会被回收
+            log.error("归还库存租约异常 voucherId={} units={}", voucherId, units, e);
+            return false;
+        }
+    }
+
+    /**
+     * 这个节点改了租约的配置(新增秒杀券 预热 重建的时候) 马上更新本地缓存 别的节点等缓存过期
+     */
+    public void refreshChunk(Long voucherId, int chunk) {
+        chunks.put(voucherId, Math.max(chunk, 0));
+    }
+
+    /**
+     * 每次租多少个 本地缓存没有的从redis读(一次pipeline读配置和时间窗口)
+     * 没有配置、也没有加载到redis的券(比如随便传的id)不缓存 不然每个随机id都会在本地占一个位置
+     */
+    private int chunkOf(Long voucherId) {
+        Integer cached = chunks.get(voucherId, false);
+        if (cached != null) {
+            return cached;
+        }
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection c = (StringRedisConnection) connection;
+            c.get(SECKILL_LEASE_CHUNK_KEY + voucherId);
+            c.exists(SECKILL_WINDOW_KEY + voucherId);
+            return null;
+        });
+        if (values.get(0) != null) {
+            int chunk = Integer.parseInt(values.get(0).toString());
+            chunks.put(voucherId, chunk);
+            return chunk;
+        }
+        if (Boolean.TRUE.equals(values.get(1))) {
+            // 已经加载了 没有配置租约
+            chunks.put(voucherId, 0);
+        }
+        return 0;
+    }
+
+    private static boolean decrement(Lease lease, int quantity) {
+        while (true) {
+            int remaining = lease.remaining.get();
+            if (remaining < quantity) {
+                return false;
+            }
+            if (lease.remaining.compareAndSet(remaining, remaining - quantity)) {
+                return true;
+            }
+        }
+    }
+}
@@ -105,6 +105,9 @@ CREATE TABLE `tb_seckill_voucher`
 (
     `voucher_id`  bigint(20) UNSIGNED NOT NULL COMMENT '关联的优惠券的id',
     `stock`       int(8) NOT NULL COMMENT '库存',
+    `user_limit`  int(8) NOT NULL DEFAULT 1 COMMENT '每人限购数量',
+    `lease_chunk` int(8) NOT NULL DEFAULT 0 COMMENT '库存租约每次租多少个 0表示不用租约',
+    `room_rate`   int(8) NOT NULL DEFAULT 0 COMMENT '排队每秒放行多少个号 0表示不用排队',
     `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
     `begin_time`  timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '生效时间',
     `end_time`    timestamp NOT NULL DEFAULT '0000-00-00 00:00:00' COMMENT '失效时间',
@@ -2366,6 +2369,7 @@ CREATE TABLE `tb_voucher_order`
     `id`          bigint(20) NOT NULL COMMENT '主键',
     `user_id`     bigint(20) UNSIGNED NOT NULL COMMENT '下单的用户id',
     `voucher_id`  bigint(20) UNSIGNED NOT NULL COMMENT '购买的代金券id',
+    `quantity`    int(8) UNSIGNED NOT NULL DEFAULT 1 COMMENT '购买数量',
     `pay_type`    tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '支付方式 1：余额支付；2：支付宝；3：微信',
     `status`      tinyint(1) UNSIGNED NOT NULL DEFAULT 1 COMMENT '订单状态，1：未支付；2：已支付；3：已核销；4：已取消；5：退款中；6：已退款',
     `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '下单时间',
@@ -2373,7 +2377,8 @@ CREATE TABLE `tb_voucher_order`
     `use_time`    timestamp NULL DEFAULT NULL COMMENT '核销时间',
     `refund_time` timestamp NULL DEFAULT NULL COMMENT '退款时间',
     `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
-    PRIMARY KEY (`id`) USING BTREE
+    PRIMARY KEY (`id`) USING BTREE,
+    KEY `idx_user_voucher` (`user_id`, `voucher_id`) USING BTREE
 ) ENGINE = InnoDB CHARACTER SET = utf8mb4 COLLATE = utf8mb4_general_ci ROW_FORMAT = Compact;
 
 -- ----------------------------
@@ -0,0 +1,112 @@
+-- 只能在一个主节点的redis上执行(单机或者sentinel): key都是在脚本里面拼的(KEYS是空的) 而且一次要访问不同hash slot的key
+-- (券的库存/下单用户 订单id序列号 按用户分的订单stream分片) redis cluster会拒绝 启动时RedisAsyncConfig会检查
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.订单id的时间戳部分(RedisIdWorker.timestamp)
+local timestamp = tonumber(ARGV[3])
+-- 1.4.订单id序列号自增的key(RedisIdWorker.counterKey) icrorder:yyyyMMdd
+local counterKey = ARGV[4]
+-- 1.5.订单stream的分片数
+local shardCount = tonumber(ARGV[5])
+-- 1.6.多久(秒)不支付自动取消 0表示不取消
+local payTimeout = tonumber(ARGV[6])
+-- 1.7.下单记录的有效期(秒) 落库之前查订单先查这个记录
+local recordTtl = tonumber(ARGV[7])
+-- 1.8.这一单买几个
+local quantity = tonumber(ARGV[8])
+-- 1.9.节点id(可选) 传了就表示库存已经从节点的本地租约里面扣过了 这里不再检查redis的库存 改成扣节点手里的租约
+local leaseNode = ARGV[9]
+
+-- 拼接订单id 和RedisIdWorker一样是 时间戳 << 32 | 序列号
+-- lua的数字是double 超过2^53就会丢精度 所以拆成高低两部分来算 最后拼成字符串
+local function buildOrderId(ts, count)
+    local hi = ts * 65536
+    local h1 = math.floor(hi / 10000000)
+    local low = (hi % 10000000) * 65536 + count
+    local high = h1 * 65536 + math.floor(low / 10000000)
+    low = low % 10000000
+    if (high == 0) then
+        return string.format('%d', low)
+    end
+    return string.format('%d%07d', high, low)
+end
+
+-- 2.数据key
+-- 2.1.库存key
+local stockKey = 'seckill:stock:' .. voucherId
+-- 2.2.每个用户已经买了几个(hash 用户id -> 数量 保证每人限购)
+local boughtKey = 'seckill:bought:' .. voucherId
+-- 2.3.订单stream的key 按用户id选分片 stream.order:{k}
+local streamKey = 'stream.order:{' .. (tonumber(userId) % shardCount) .. '}'
+
+-- 2.4.秒杀的时间窗口和每人限购数量(预热的时候写进来的 开始时间 结束时间 单位秒)
+local windowKey = 'seckill:window:' .. voucherId
+local window = redis.call('hmget', windowKey, 'begin', 'end', 'limit')
+
+-- 3.脚本业务
+-- 3.0.判断秒杀是否开始 是否结束(用redis的时间 所有节点都一样)
+-- 没有时间窗口说明还没预热(或者已经卸载了) 库存也没有加载 当作还没开始 不能返回售罄
+if (not window[1]) then
+    return { 3 }
+end
+local now = tonumber(redis.call('time')[1])
+if (now < tonumber(window[1])) then
+    return { 3 }
+end
+if (now >= tonumber(window[2])) then
+    return { 4 }
+end
+-- 3.0.1.开启了排队的券 号码还没轮到的不能抢(放行的进度在seckill_room.lua里面推进) 返回 {5}
+if (redis.call('exists', 'seckill:room:rate:' .. voucherId) == 1) then
+    local position = tonumber(redis.call('hget', 'seckill:room:tickets:' .. voucherId, userId) or '0')
+    local frontier = tonumber(redis.call('hget', 'seckill:room:' .. voucherId, 'frontier') or '0')
+    if (position == 0 or position > frontier) then
+        return { 5 }
+    end
+end
+-- 3.1.判断库存是否够quantity个
+if (leaseNode) then
+    -- 用的是节点租来的库存 不需要找key
+    -- 节点被误判成挂了的时候租约会被别的节点回收 手里不够这一单就不能再卖 返回 {6} 节点丢掉本地的租约
+    if (tonumber(redis.call('hget', 'seckill:lease:' .. voucherId, leaseNode) or '0') < quantity) then
+        return { 6 }
+    end
+else
+    local stock = tonumber(redis.call('get', stockKey) or '0')
+    -- 一个都没有了返回 {1}(售罄) 还有但是不够这一单返回 {7}(别人买少一点还能买到 不能标记售罄)
+    if (stock <= 0) then
+        return { 1 }
+    end
+    if (stock < quantity) then
+        return { 7 }
+    end
+end
+-- 3.2.判断用户买的数量有没有超过限购 hget boughtKey userId
+local limit = tonumber(window[3] or '1')
+if (tonumber(redis.call('hget', boughtKey, userId) or '0') + quantity > limit) then
+    return { 2 }
+end
+-- 3.3.扣库存 incrby stockKey -n (用租约的话是节点手里的少n个 hincrby seckill:lease:id nodeId -n)
+if (leaseNode) then
+    redis.call('hincrby', 'seckill:lease:' .. voucherId, leaseNode, -quantity)
+else
+    redis.call('incrby', stockKey, -quantity)
+end
+-- 3.4.下单(记下用户买的数量 和一共卖出去的数量) hincrby boughtKey userId n
+-- 上面已经确认时间窗口存在 sold只加在已有的窗口上(不会凭空建出一个没有begin/end的窗口)
+redis.call('hincrby', boughtKey, userId, quantity)
+redis.call('hincrby', windowKey, 'sold', quantity)
+-- 3.5.生成订单id(只有抢到的才自增序列号) incr counterKey
+local orderId = buildOrderId(timestamp, redis.call('incr', counterKey))
+-- 3.6.发送消息到对应分片的队列中 xadd stream.order:{k} * k1 v1 k2 v2 ...
+redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId, 'quantity', quantity)
+-- 3.7.下单记录 用户id:状态(0处理中):优惠券id:数量 消费者落库以后改成成功或者失败
+redis.call('set', 'seckill:order:result:' .. orderId, userId .. ':0:' .. voucherId .. ':' .. quantity, 'EX', recordTtl)
+-- 3.8.支付截止时间放进延迟队列(和订单id的时间戳一样的单位) zadd seckill:order:deadline deadline orderId
+if (payTimeout > 0) then
+    redis.call('zadd', 'seckill:order:deadline', timestamp + payTimeout, orderId)
+end
+return { 0, orderId }
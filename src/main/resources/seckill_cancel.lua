@@ -0,0 +1,20 @@
+-- 取消订单以后把库存还给redis
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.取消的订单一共多少个
+local count = tonumber(ARGV[2])
+
+-- 2.还库存(没有加载到redis的不用还)
+local stockKey = 'seckill:stock:' .. voucherId
+local returned = 0
+if (redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, count)
+    returned = 1
+end
+-- 3.取消的数量还算在用户买过的数量里面(限购不会因为取消变多) 对账的总库存要加上还回来的
+local reconcileKey = 'seckill:reconcile:' .. voucherId
+if (redis.call('hexists', reconcileKey, 'total') == 1) then
+    redis.call('hincrby', reconcileKey, 'total', count)
+end
+return returned
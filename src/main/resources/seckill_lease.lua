@@ -0,0 +1,24 @@
+-- 节点从redis的库存里面租一块到本地内存(库存租约)
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.节点id
+local nodeId = ARGV[2]
+-- 1.3.这次想租多少个
+local chunk = tonumber(ARGV[3])
+
+-- 2.库存的key
+local stockKey = 'seckill:stock:' .. voucherId
+
+-- 3.扣redis的库存 能拿多少拿多少
+local granted = 0
+local stock = tonumber(redis.call('get', stockKey) or '0')
+if (stock > 0) then
+    granted = math.min(stock, chunk)
+    redis.call('incrby', stockKey, -granted)
+end
+-- 4.记下每个节点手里还有多少没卖出去的 hincrby seckill:lease:id nodeId granted
+if (granted > 0) then
+    redis.call('hincrby', 'seckill:lease:' .. voucherId, nodeId, granted)
+end
+return granted
@@ -0,0 +1,29 @@
+-- 节点把租约里面没卖出去的库存还回redis
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.节点id
+local nodeId = ARGV[2]
+-- 1.3.还多少个 -1表示这个节点租的全部还回去(节点已经挂了 由别的节点来回收)
+local units = tonumber(ARGV[3])
+
+local leaseKey = 'seckill:lease:' .. voucherId
+local held = tonumber(redis.call('hget', leaseKey, nodeId) or '0')
+if (units < 0 or units > held) then
+    units = held
+end
+if (units <= 0) then
+    return 0
+end
+-- 2.还库存(已经卸载了的不用还)
+local stockKey = 'seckill:stock:' .. voucherId
+if (redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, units)
+end
+-- 3.减掉节点手里的
+if (held - units <= 0) then
+    redis.call('hdel', leaseKey, nodeId)
+else
+    redis.call('hincrby', leaseKey, nodeId, -units)
+end
+return units
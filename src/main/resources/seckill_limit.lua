@@ -0,0 +1,59 @@
+-- 秒杀限流 令牌桶(整个券 每个用户 每个ip 三个桶 一次脚本全部检查)
+-- 三个桶都有令牌才放行 并且各扣一个 有一个没有就都不扣
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id(没登录是空字符串)
+local userId = ARGV[2]
+-- 1.3.ip
+local ip = ARGV[3]
+-- 1.4.默认的配置 每秒放多少个令牌 桶的容量(券没有单独配置的时候用)
+local defaults = { tonumber(ARGV[4]), tonumber(ARGV[5]), tonumber(ARGV[6]),
+                   tonumber(ARGV[7]), tonumber(ARGV[8]), tonumber(ARGV[9]) }
+
+-- 2.券单独的配置 hset seckill:limit:id voucher-rate 1000 user-rate 1 ...
+local conf = redis.call('hmget', 'seckill:limit:' .. voucherId,
+        'voucher-rate', 'voucher-burst', 'user-rate', 'user-burst', 'ip-rate', 'ip-burst')
+for i = 1, 6 do
+    if (conf[i]) then
+        defaults[i] = tonumber(conf[i])
+    end
+end
+
+-- 3.要检查的桶 {key, 每秒多少个令牌, 容量} 速率是0的不限流
+local buckets = {}
+buckets[1] = { 'seckill:limit:v:' .. voucherId, defaults[1], defaults[2] }
+if (userId ~= '') then
+    buckets[2] = { 'seckill:limit:u:' .. voucherId .. ':' .. userId, defaults[3], defaults[4] }
+end
+buckets[3] = { 'seckill:limit:ip:' .. voucherId .. ':' .. ip, defaults[5], defaults[6] }
+
+local t = redis.call('time')
+local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+
+-- 4.先检查 算出每个桶现在有多少令牌
+local tokens = {}
+for i = 1, 3 do
+    local bucket = buckets[i]
+    if (bucket and bucket[2] > 0) then
+        local state = redis.call('hmget', bucket[1], 'tokens', 'ts')
+        local rate = bucket[2]
+        local burst = math.max(bucket[3], 1)
+        local current = burst
+        if (state[1]) then
+            current = math.min(burst, tonumber(state[1]) + (now - tonumber(state[2])) * rate / 1000)
+        end
+        if (current < 1) then
+            -- 没有令牌 返回 {第几个桶, 还要等多少毫秒}
+            return { i, math.ceil((1 - current) * 1000 / rate) }
+        end
+        tokens[i] = current
+    end
+end
+-- 5.都有令牌 各扣一个 桶满了之后的过期时间
+for i, current in pairs(tokens) do
+    local bucket = buckets[i]
+    redis.call('hset', bucket[1], 'tokens', current - 1, 'ts', now)
+    redis.call('pexpire', bucket[1], math.ceil(math.max(bucket[3], 1) * 1000 / bucket[2]) + 1000)
+end
+return { 0, 0 }
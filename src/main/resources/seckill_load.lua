@@ -0,0 +1,26 @@
+-- 秒杀开始前把秒杀券的状态加载到redis里面(已经加载过了就什么都不做 多个节点同时执行也只会加载一次)
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.库存
+local stock = tonumber(ARGV[2])
+-- 1.3.开始时间 结束时间(秒)
+local beginTime = ARGV[3]
+local endTime = ARGV[4]
+-- 1.4.每人限购几个
+local limit = ARGV[5]
+
+-- 2.数据key
+local windowKey = 'seckill:window:' .. voucherId
+local boughtKey = 'seckill:bought:' .. voucherId
+
+-- 3.已经加载过了 直接返回(看的是begin 只有sold的残缺窗口要重新加载)
+if (redis.call('hexists', windowKey, 'begin') == 1) then
+    return 0
+end
+-- 4.写库存
+redis.call('set', 'seckill:stock:' .. voucherId, stock)
+-- 5.清空买过的用户 写入时间窗口 限购数量 卖出去的数量
+redis.call('del', boughtKey)
+redis.call('hset', windowKey, 'begin', beginTime, 'end', endTime, 'limit', limit, 'sold', 0)
+return 1
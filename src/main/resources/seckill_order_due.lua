@@ -0,0 +1,19 @@
+-- 从延迟队列里面认领到期的订单(多个节点 多个线程一起拉 不会拿到同一个)
+-- 认领的时候不删除 而是把分数改成 now + lease 处理完了再zrem
+-- 处理的线程挂了的话 租约到期又会被别人认领
+-- 1.参数列表
+-- 1.1.当前时间(和订单id的时间戳一样的单位)
+local now = tonumber(ARGV[1])
+-- 1.2.租约(秒)
+local lease = tonumber(ARGV[2])
+-- 1.3.最多认领多少个
+local count = tonumber(ARGV[3])
+
+local key = 'seckill:order:deadline'
+-- 2.到期的订单 zrangebyscore key -inf now limit 0 count
+local orderIds = redis.call('zrangebyscore', key, '-inf', now, 'limit', 0, count)
+-- 3.续上租约
+for _, orderId in ipairs(orderIds) do
+    redis.call('zadd', key, now + lease, orderId)
+end
+return orderIds
@@ -0,0 +1,45 @@
+-- redis数据丢失以后 用mysql的数据重建秒杀券的状态(每个用户买的数量已经用pipeline从订单表写到临时hash里面了)
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.总库存(mysql快照里面的 库存 + 订单的数量)
+local total = tonumber(ARGV[2])
+-- 1.3.开始时间 结束时间(秒)
+local beginTime = ARGV[3]
+local endTime = ARGV[4]
+-- 1.4.每人限购几个
+local limit = ARGV[5]
+
+-- 2.数据key
+local windowKey = 'seckill:window:' .. voucherId
+local boughtKey = 'seckill:bought:' .. voucherId
+local rebuildKey = 'seckill:bought:' .. voucherId .. ':rebuild'
+
+-- 3.合并每个用户买的数量 取两边大的(重建期间 比如预热任务已经重新加载了 新抢到的也要保留 重复执行也不会变多)
+if (redis.call('exists', rebuildKey) == 1) then
+    local staged = redis.call('hgetall', rebuildKey)
+    for i = 1, #staged, 2 do
+        local current = tonumber(redis.call('hget', boughtKey, staged[i]) or '0')
+        if (tonumber(staged[i + 1]) > current) then
+            redis.call('hset', boughtKey, staged[i], staged[i + 1])
+        end
+    end
+    redis.call('del', rebuildKey)
+end
+-- 4.库存 = 总库存 - 已经卖出去的 - 节点租走了还没卖出去的
+local sold = 0
+for _, bought in ipairs(redis.call('hvals', boughtKey)) do
+    sold = sold + tonumber(bought)
+end
+local stock = total - sold
+for _, held in ipairs(redis.call('hvals', 'seckill:lease:' .. voucherId)) do
+    stock = stock - tonumber(held)
+end
+if (stock < 0) then
+    stock = 0
+end
+-- 5.写库存
+redis.call('set', 'seckill:stock:' .. voucherId, stock)
+-- 6.时间窗口 限购数量 卖出去的数量
+redis.call('hset', windowKey, 'begin', beginTime, 'end', endTime, 'limit', limit, 'sold', sold)
+return stock
@@ -0,0 +1,58 @@
+-- 秒杀排队(等候室) 领号和查询排到哪了
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.用户id
+local userId = ARGV[2]
+-- 1.3.take: 领号(已经领过了就返回原来的号) query: 只查询
+local mode = ARGV[3]
+
+-- 2.数据key
+local rateKey = 'seckill:room:rate:' .. voucherId
+local roomKey = 'seckill:room:' .. voucherId
+local ticketKey = 'seckill:room:tickets:' .. voucherId
+
+-- 3.没有开启排队的券 返回 {-1}
+local rate = tonumber(redis.call('get', rateKey) or '0')
+if (rate <= 0) then
+    return { -1 }
+end
+
+-- 4.放行的进度 每秒放rate个号 (没人排队的时候不攒名额)
+local function advance()
+    local t = redis.call('time')
+    local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+    local room = redis.call('hmget', roomKey, 'seq', 'frontier', 'last')
+    local seq = tonumber(room[1] or '0')
+    local frontier = tonumber(room[2] or '0')
+    local last = tonumber(room[3] or now)
+    -- 秒杀开始之前不放行
+    local beginTime = redis.call('hget', 'seckill:window:' .. voucherId, 'begin')
+    if (beginTime and last < tonumber(beginTime) * 1000) then
+        last = tonumber(beginTime) * 1000
+    end
+    if (now <= last) then
+        redis.call('hset', roomKey, 'last', last)
+        return frontier
+    end
+    local gained = math.floor((now - last) * rate / 1000)
+    if (frontier + gained >= seq) then
+        -- 排队的人都放进去了 多出来的名额不攒着
+        frontier = seq
+        last = now
+    elseif (gained > 0) then
+        frontier = frontier + gained
+        last = last + math.floor(gained * 1000 / rate)
+    end
+    redis.call('hset', roomKey, 'frontier', frontier, 'last', last)
+    return frontier
+end
+
+-- 5.领号 hsetnx 同一个用户只有一个号
+local position = tonumber(redis.call('hget', ticketKey, userId) or '0')
+if (position == 0 and mode == 'take') then
+    position = redis.call('hincrby', roomKey, 'seq', 1)
+    redis.call('hset', ticketKey, userId, position)
+end
+-- 6.返回 {号码(0表示没领过), 已经放行到第几号, 每秒放行多少个}
+return { position, advance(), rate }
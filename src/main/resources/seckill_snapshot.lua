@@ -0,0 +1,21 @@
+-- 秒杀券在redis里面的快照(一次脚本里面读完 保证是同一时刻的)
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+
+-- 2.库存
+local stock = 0
+local loaded = 0
+local value = redis.call('get', 'seckill:stock:' .. voucherId)
+if (value) then
+    stock = tonumber(value)
+    loaded = 1
+end
+-- 2.1.节点租走了还没卖出去的也算库存
+for _, held in ipairs(redis.call('hvals', 'seckill:lease:' .. voucherId)) do
+    stock = stock + tonumber(held)
+end
+-- 3.已经卖出去的数量(每个用户买的数量加起来 下单的时候累加在时间窗口里面)
+local admitted = tonumber(redis.call('hget', 'seckill:window:' .. voucherId, 'sold') or '0')
+-- 4.返回 [是否加载了, 库存, 已抢到的数量]
+return { loaded, stock, admitted }
@@ -0,0 +1,31 @@
+-- 调整秒杀券在redis里面的库存
+-- 1.参数列表
+-- 1.1.优惠券id
+local voucherId = ARGV[1]
+-- 1.2.调整的数量(正数是加 负数是减)
+local delta = tonumber(ARGV[2])
+-- 1.3.期望当前的库存是多少(空字符串表示不检查) 对不上就说明这期间又有人下单了 不调整
+local expected = ARGV[3]
+
+-- 2.库存的key
+local stockKey = 'seckill:stock:' .. voucherId
+
+-- 3.没有加载到redis里面的不用调整
+local current = redis.call('get', stockKey)
+if (not current) then
+    return 0
+end
+-- 4.检查当前库存
+if (expected ~= '') then
+    local stock = tonumber(current)
+    -- 节点租走了还没卖出去的也算库存
+    for _, held in ipairs(redis.call('hvals', 'seckill:lease:' .. voucherId)) do
+        stock = stock + tonumber(held)
+    end
+    if (stock ~= tonumber(expected)) then
+        return 0
+    end
+end
+-- 5.调整库存
+redis.call('incrby', stockKey, delta)
+return 1
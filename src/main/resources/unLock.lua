@@ -0,0 +1,6 @@
+-- 释放锁(锁里面的标识和自己的一样才删 不会删掉别人的锁)
+-- KEYS[1] 锁的key ARGV[1] 加锁的时候写进去的标识
+if (redis.call('get', KEYS[1]) == ARGV[1]) then
+    return redis.call('del', KEYS[1])
+end
+return 0
@@ -5,15 +5,20 @@ import com.hmdp.service.IShopService;
 import com.hmdp.service.impl.ShopServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
@@ -21,6 +26,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_FILTER_ADDED_KEY;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 
@@ -108,4 +114,45 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogiclExpire(CACHE_SHOP_KEY + 1L, shop, 10L, TimeUnit.SECONDS);
     }
 
+    /**
+     * 布隆过滤器
+     * 1.重建期间新增的id(在pending里面)重建完以后要在新的过滤器里面
+     * 2.别的节点新增的id(通知丢了 只在redis里面有)也要当作存在
+     */
+    @Test
+    void testBloomFilter() {
+        String keyPrefix = "test:filter:";
+        String addedKey = CACHE_FILTER_ADDED_KEY + keyPrefix;
+        stringRedisTemplate.delete(addedKey);
+        // cacheClient是共用的单例 测试完要还原(不然定时重建会一直调用下面的lambda)
+        Object enabled = ReflectionTestUtils.getField(cacheClient, "filterEnabled");
+        ReflectionTestUtils.setField(cacheClient, "filterEnabled", true);
+        try {
+            // 1.查数据库的时候新增了100 这时候过滤器还没建好 只能放到pending里面
+            cacheClient.registerFilter(keyPrefix, () -> {
+                cacheClient.addToFilter(keyPrefix, 100L);
+                return Arrays.asList(1L, 2L, 3L);
+            });
+            Assertions.assertTrue(cacheClient.mightExist(keyPrefix, 1L));
+            Assertions.assertTrue(cacheClient.mightExist(keyPrefix, 100L));
+            // 2.别的节点新增的200 本节点没收到通知
+            stringRedisTemplate.opsForZSet().add(addedKey, "200", System.currentTimeMillis());
+            Assertions.assertTrue(cacheClient.mightExist(keyPrefix, 200L));
+            // 3.没有新增过的
+            Assertions.assertFalse(cacheClient.mightExist(keyPrefix, 999L));
+            // 4.批量查询 本地说不存在的在同一个pipeline里面确认 只有最近新增过的300去查数据库
+            stringRedisTemplate.opsForZSet().add(addedKey, "300", System.currentTimeMillis());
+            List<Collection<Long>> loads = new ArrayList<>();
+            cacheClient.queryBatch(keyPrefix, Arrays.asList(998L, 300L), Shop.class, missing -> {
+                loads.add(new ArrayList<>(missing));
+                return Collections.emptyList();
+            }, Shop::getId, 1L, TimeUnit.MINUTES);
+            Assertions.assertEquals(Collections.singletonList(Collections.singletonList(300L)), loads);
+        } finally {
+            ReflectionTestUtils.setField(cacheClient, "filterEnabled", enabled);
+            ((Map<?, ?>) ReflectionTestUtils.getField(cacheClient, "filters")).remove(keyPrefix);
+            stringRedisTemplate.delete(Arrays.asList(addedKey, keyPrefix + 300L));
+        }
+    }
+
 }